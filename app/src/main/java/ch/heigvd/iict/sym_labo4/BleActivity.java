@@ -2,14 +2,10 @@ package ch.heigvd.iict.sym_labo4;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.ParcelUuid;
 import android.util.Log;
 import android.view.Menu;
@@ -31,6 +27,8 @@ import java.util.UUID;
 
 import ch.heigvd.iict.sym_labo4.abstractactivies.BaseTemplateActivity;
 import ch.heigvd.iict.sym_labo4.adapters.ResultsAdapter;
+import ch.heigvd.iict.sym_labo4.ble.BleScanEngine;
+import ch.heigvd.iict.sym_labo4.ble.ScanScheduler;
 import ch.heigvd.iict.sym_labo4.viewmodels.BleOperationsViewModel;
 
 /**
@@ -63,8 +61,11 @@ public class BleActivity extends BaseTemplateActivity {
     //adapters
     private ResultsAdapter scanResultsAdapter = null;
 
+    //scan, aggregated off the main thread
+    private BleScanEngine scanEngine = null;
+    private ScanScheduler scanScheduler = null;
+
     //states
-    private Handler handler = null;
     private boolean isScanning = false;
 
     //Interface
@@ -82,8 +83,6 @@ public class BleActivity extends BaseTemplateActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_ble);
 
-        this.handler = new Handler();
-
         //enable and start bluetooth - initialize bluetooth adapter
         final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         this.bluetoothAdapter = bluetoothManager.getAdapter();
@@ -117,6 +116,24 @@ public class BleActivity extends BaseTemplateActivity {
         this.scanResults.setAdapter(this.scanResultsAdapter);
         this.scanResults.setEmptyView(this.emptyScanResults);
 
+        this.scanEngine = new BleScanEngine(this.bluetoothAdapter, new BleScanEngine.Listener() {
+            @Override
+            public void onScanResults(BleScanEngine.Snapshot snapshot) {
+                scanResultsAdapter.setResults(snapshot.getResults());
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                scanLeDevice(false);
+            }
+        });
+
+        //low latency while new devices are found, cheaper modes otherwise
+        this.scanScheduler = new ScanScheduler(this.scanEngine, () -> {
+            isScanning = false;
+            Log.d(TAG,"Stop scanning (no new device)");
+        });
+
         //connect to view model
         this.bleViewModel = ViewModelProviders.of(this).get(BleOperationsViewModel.class);
 
@@ -237,14 +254,8 @@ public class BleActivity extends BaseTemplateActivity {
 
     //this method need user granted localisation permission, our demo app is requesting it on MainActivity
     private void scanLeDevice(final boolean enable) {
-        final BluetoothLeScanner bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
         if (enable) {
 
-            //config
-            ScanSettings.Builder builderScanSettings = new ScanSettings.Builder();
-            builderScanSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
-            builderScanSettings.setReportDelay(0);
-
             //we scan for any BLE device
             //we don't filter them based on advertised services...
             //Rappel : Activer Ble et geoloc
@@ -257,27 +268,16 @@ public class BleActivity extends BaseTemplateActivity {
             //reset display
             scanResultsAdapter.clear();
 
-            bluetoothScanner.startScan(filters, builderScanSettings.build(), leScanCallback);
+            //results batched by the controller when it can, aggregated by the engine
+            scanScheduler.start(filters);
             Log.d(TAG,"Start scanning...");
             isScanning = true;
 
-            //we scan only for 15 seconds
-            handler.postDelayed(() -> scanLeDevice(false), 15*1000L);
-
         } else {
-            bluetoothScanner.stopScan(leScanCallback);
+            scanScheduler.stop();
             isScanning = false;
             Log.d(TAG,"Stop scanning (manual)");
         }
     }
 
-    // Device scan callback.
-    private ScanCallback leScanCallback = new ScanCallback() {
-        @Override
-        public void onScanResult(int callbackType, final ScanResult result) {
-            super.onScanResult(callbackType, result);
-            runOnUiThread(() -> scanResultsAdapter.addDevice(result));
-        }
-    };
-
 }
@@ -1,36 +1,42 @@
 package ch.heigvd.iict.sym_labo4;
 
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.app.ActivityManager;
 import android.hardware.SensorManager;
 import android.opengl.GLSurfaceView;
 import androidx.appcompat.app.AppCompatActivity;
 import android.os.Bundle;
+import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+import android.widget.Toast;
 
+import java.util.Locale;
+
+import ch.heigvd.iict.sym_labo4.gl.FramePacer;
+import ch.heigvd.iict.sym_labo4.gl.ModelLoader;
 import ch.heigvd.iict.sym_labo4.gl.OpenGLRenderer;
+import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+import ch.heigvd.iict.sym_labo4.sensors.OrientationEngine;
+import ch.heigvd.iict.sym_labo4.sensors.OrientationPredictor;
 
-public class CompassActivity extends AppCompatActivity implements SensorEventListener {
-    private SensorManager mSensorManager;
-    private Sensor mAccelerometer;
-    private Sensor mMagField;
-    float[] mGravs = new float[3];
-    float[] mGeoMags = new float[3];
-    float[] mRotationM = new float[16];
+public class CompassActivity extends AppCompatActivity {
+    private OrientationEngine mOrientationEngine;
 
     //opengl
     private OpenGLRenderer  opglr           = null;
     private GLSurfaceView   m3DView         = null;
+    private ProgressBar     mLoadProgress   = null;
+    private TextView        mHud            = null;
+    private ModelLoader     mModelLoader    = null;
+    private FramePacer      mFramePacer     = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
-        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        mMagField = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        SensorManager sensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
         // we need fullscreen
         this.requestWindowFeature(Window.FEATURE_NO_TITLE);
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -38,47 +44,84 @@ public class CompassActivity extends AppCompatActivity implements SensorEventLis
         // we initiate the view
         setContentView(R.layout.activity_compass);
 
-        //we create the renderer
-        this.opglr = new OpenGLRenderer(getApplicationContext());
+        //we create the renderer, with shaders when the device supports OpenGL ES 2.0 or more
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        int glEsVersion = Math.max(1, Math.min(activityManager.getDeviceConfigurationInfo().reqGlEsVersion >> 16, 3));
+        this.opglr = new OpenGLRenderer(glEsVersion);
 
         // link to GUI
         this.m3DView = findViewById(R.id.compass_opengl);
+        this.mLoadProgress = findViewById(R.id.compass_progress);
+        this.mHud = findViewById(R.id.compass_hud);
 
-        //init opengl surface view
+        //init opengl surface view, the context version must be set before the renderer
+        if (glEsVersion >= 2) {
+            this.m3DView.setEGLContextClientVersion(glEsVersion);
+        }
         this.m3DView.setRenderer(this.opglr);
+        //only redraw when the orientation changes, on the vsync of the display
+        this.m3DView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        this.mFramePacer = new FramePacer(this.m3DView);
+        this.opglr.setFramePacer(this.mFramePacer);
+        this.opglr.setRefreshRate(getWindowManager().getDefaultDisplay().getRefreshRate());
+
+        //the model is loaded in background, a placeholder is drawn meanwhile
+        this.mModelLoader = ModelLoader.load(this, "arrow.obj",
+                new ObjLoader.Options()
+                        .setLevelsOfDetail(ObjLoader.MAX_LEVELS_OF_DETAIL)
+                        .setStaticBatch(true));
+        this.mModelLoader.getProgress().observe(this, (progress) ->
+                this.mLoadProgress.setProgress(Math.round(progress * this.mLoadProgress.getMax())));
+        this.mModelLoader.getModel().observe(this, (model) -> {
+            this.mLoadProgress.setVisibility(View.GONE);
+            this.m3DView.queueEvent(() -> this.opglr.setModel(model));
+        });
+        //the placeholder stays if the model cannot be loaded
+        this.mModelLoader.getError().observe(this, (error) -> {
+            this.mLoadProgress.setVisibility(View.GONE);
+            Toast.makeText(getApplicationContext(), R.string.compass_load_failed, Toast.LENGTH_LONG).show();
+        });
+
+        //the orientation is computed on its own thread, the renderer copies each new matrix
+        //and extrapolates it to the time the frame is displayed
+        this.opglr.setPredictor(new OrientationPredictor(OrientationPredictor.DEFAULT_HORIZON_NS));
+        this.mOrientationEngine = OrientationEngine.create(sensorManager,
+                (rotationMatrix, timestampNs, frameTimeNanos) -> {
+                    this.opglr.onVsync(frameTimeNanos);
+                    this.opglr.swapRotMatrix(rotationMatrix, timestampNs);
+                });
+
+        //performance overlay, shown or hidden by a tap on the view
+        this.m3DView.setOnClickListener((v) ->
+                this.mHud.setVisibility(this.mHud.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE));
+        this.opglr.getFrameStats().setListener((summary) -> {
+            String text = summary.replace(", ", "\n")
+                    + String.format(Locale.ROOT, "\nlatency %.1f ms\nresidual latency %.1f ms\n",
+                            this.opglr.getLatencyNs() / 1e6, this.opglr.getResidualLatencyNs() / 1e6)
+                    + this.mOrientationEngine.getStats();
+            this.mHud.post(() -> this.mHud.setText(text));
+        });
 
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        switch (event.sensor.getType()) {
-            case Sensor.TYPE_ACCELEROMETER:
-                System.arraycopy(event.values, 0, mGravs, 0, 3);
-                break;
-            case Sensor.TYPE_MAGNETIC_FIELD:
-                System.arraycopy(event.values, 0, mGeoMags, 0, 3);
-                break;
-            default:
-                return;
-        }
-        SensorManager.getRotationMatrix(mRotationM, null , mGravs, mGeoMags);
-        this.opglr.swapRotMatrix(mRotationM);
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-
+    protected void onDestroy() {
+        super.onDestroy();
+        this.mModelLoader.cancel();
+        this.opglr.getFrameStats().setListener(null);
     }
 
     protected void onResume() {
         super.onResume();
-        mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);
-        mSensorManager.registerListener(this, mMagField, SensorManager.SENSOR_DELAY_NORMAL);
+        m3DView.onResume();
+        mOrientationEngine.start();
     }
 
     protected void onPause() {
         super.onPause();
-        mSensorManager.unregisterListener(this);
+        mOrientationEngine.stop();
+        mFramePacer.cancel();
+        m3DView.onPause();
     }
 
 }
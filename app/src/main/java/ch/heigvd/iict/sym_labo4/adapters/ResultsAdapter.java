@@ -9,11 +9,16 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import ch.heigvd.iict.sym_labo4.R;
 
+/**
+ * The devices found by the scan, as ranked by {@link ch.heigvd.iict.sym_labo4.ble.BleScanEngine}:
+ * the list shows its snapshots as they are, the engine already merges the results of each device
+ * and limits the rate of the snapshots. Each snapshot replaces the whole list, it is not diffed
+ * with the previous one: the list view only binds again the rows on screen.
+ */
 public class ResultsAdapter extends BaseAdapter {
 
     private static final String TAG = ResultsAdapter.class.getSimpleName();
@@ -31,20 +36,14 @@ public class ResultsAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
-    public void addDevice(ScanResult newResult) {
-        if(newResult == null) return;
-        boolean alreadyInAdapter = false;
-        for(ScanResult device : results) {
-            if(device.getDevice().getAddress().equalsIgnoreCase(newResult.getDevice().getAddress())) {
-                alreadyInAdapter = true;
-                break;
-            }
-        }
-        if(!alreadyInAdapter) {
-            this.results.add(newResult);
-            Collections.sort(this.results, (ScanResult o1, ScanResult o2) -> o1.getRssi() - o2.getRssi());
-            notifyDataSetChanged();
-        }
+    /**
+     * Replaces all the devices shown, main thread only
+     * @param snapshot the ranked results, copied
+     */
+    public void setResults(List<ScanResult> snapshot) {
+        this.results.clear();
+        this.results.addAll(snapshot);
+        notifyDataSetChanged();
     }
 
     @Override
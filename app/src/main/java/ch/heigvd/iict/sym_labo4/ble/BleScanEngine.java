@@ -0,0 +1,528 @@
+package ch.heigvd.iict.sym_labo4.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scan of the BLE devices, aggregated on a dedicated {@link HandlerThread}.
+ *
+ * The advertisements are batched by the controller when it supports it (a report delay, the
+ * results come in {@link ScanCallback#onBatchScanResults(List)}), one by one otherwise. The
+ * callbacks only hand them to the engine thread, where they update the {@link SignalTracker} of
+ * the scan: the devices are ranked by their filtered RSSI, the ones not seen for
+ * {@link #STALE_AFTER_MS} are removed. The single results go through a preallocated ring drained
+ * by the engine thread, nothing is allocated per advertisement. The listener gets a snapshot of
+ * the ranking on the main thread, at most {@code maxPublishRate} times per second and only when a
+ * device was found, updated or removed.
+ *
+ * Stopping a scan flushes the batch pending in the controller: it is delivered later on the main
+ * thread, the thread of the scan waits for it up to {@link #FLUSH_TIMEOUT_MS} before publishing
+ * its last snapshot.
+ */
+public class BleScanEngine {
+
+    private static final String TAG = BleScanEngine.class.getSimpleName();
+
+    public static final long DEFAULT_REPORT_DELAY_MS = 500;
+    public static final int DEFAULT_PUBLISH_RATE = 5;
+
+    public static final long STALE_AFTER_MS = 10000;
+
+    // the stale devices are looked for with the stats, even when no advertisement comes
+    private static final long STATS_PERIOD_MS = 1000;
+
+    // single results waiting for the engine thread, a power of 2. Beyond, they are posted one by one
+    static final int RING_CAPACITY = 512;
+
+    // the batch flushed when a batched scan stops is waited for at most this long
+    static final long FLUSH_TIMEOUT_MS = 500;
+
+    /*
+     * The scanner of the adapter, replaced by a fake in the tests
+     */
+    interface Scanner {
+        /**
+         * @return false when bluetooth is off
+         */
+        boolean isEnabled();
+
+        boolean isOffloadedScanBatchingSupported();
+
+        void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback);
+
+        void flushPendingScanResults(ScanCallback callback);
+
+        void stopScan(ScanCallback callback);
+    }
+
+    /*
+     * The scanner of the adapter is null while bluetooth is off
+     */
+    private static final class AdapterScanner implements Scanner {
+        private final BluetoothAdapter adapter;
+
+        AdapterScanner(BluetoothAdapter adapter) {
+            this.adapter = adapter;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return adapter.getBluetoothLeScanner() != null;
+        }
+
+        @Override
+        public boolean isOffloadedScanBatchingSupported() {
+            return adapter.isOffloadedScanBatchingSupported();
+        }
+
+        @Override
+        public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) {
+                scanner.startScan(filters, settings, callback);
+            } else {
+                callback.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+            }
+        }
+
+        @Override
+        public void flushPendingScanResults(ScanCallback callback) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) scanner.flushPendingScanResults(callback);
+        }
+
+        @Override
+        public void stopScan(ScanCallback callback) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) scanner.stopScan(callback);
+        }
+    }
+
+    /**
+     * Receives the results of the scan, on the main thread
+     */
+    public interface Listener {
+        /**
+         * @param snapshot the devices found since the start of the scan
+         */
+        void onScanResults(Snapshot snapshot);
+
+        /**
+         * @param errorCode one of the {@code SCAN_FAILED_*} codes of {@link ScanCallback}
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * The devices found, strongest first, and what changed since the previous snapshot
+     */
+    public static final class Snapshot {
+        private final List<ScanResult> results;
+        private final float[] rssi;
+        private final float[] rates;
+        private final int added;
+        private final int updated;
+        private final int removed;
+
+        Snapshot(List<ScanResult> results, float[] rssi, float[] rates, int added, int updated, int removed) {
+            this.results = Collections.unmodifiableList(results);
+            this.rssi = rssi;
+            this.rates = rates;
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+        }
+
+        /**
+         * @return the last result of each device, ranked by filtered RSSI, not modifiable
+         */
+        public List<ScanResult> getResults() {
+            return results;
+        }
+
+        /**
+         * @param position the position of the device in the results
+         * @return the RSSI of the device filtered over its advertisements, in dBm
+         */
+        public float getFilteredRssi(int position) {
+            return rssi[position];
+        }
+
+        /**
+         * @param position the position of the device in the results
+         * @return the average number of advertisements of the device per second, 0 if it was
+         *         seen once
+         */
+        public float getAdvertisingRate(int position) {
+            return rates[position];
+        }
+
+        /**
+         * @return the devices found since the previous snapshot
+         */
+        public int getAddedCount() {
+            return added;
+        }
+
+        /**
+         * @return the known devices with a new result since the previous snapshot
+         */
+        public int getUpdatedCount() {
+            return updated;
+        }
+
+        /**
+         * @return the devices of the previous snapshot expired since
+         */
+        public int getRemovedCount() {
+            return removed;
+        }
+    }
+
+    private final Scanner scanner;
+    private final Listener listener;
+    private final long reportDelayMs;
+    private final long publishIntervalMs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // the running scan, set and cleared on the main thread
+    private volatile Scan scan = null;
+    // the running scan or the last one stopped, whose counters are still read
+    private volatile Scan lastScan = null;
+
+    /**
+     * Engine batching the results for {@link #DEFAULT_REPORT_DELAY_MS} and publishing them at
+     * most {@link #DEFAULT_PUBLISH_RATE} times per second
+     * @param bluetoothAdapter the adapter scanning
+     * @param listener receives the results
+     */
+    public BleScanEngine(BluetoothAdapter bluetoothAdapter, Listener listener) {
+        this(bluetoothAdapter, listener, DEFAULT_REPORT_DELAY_MS, DEFAULT_PUBLISH_RATE);
+    }
+
+    /**
+     * @param bluetoothAdapter the adapter scanning
+     * @param listener receives the results
+     * @param reportDelayMs the delay of the batches of the controller, 0 to receive each
+     *                      advertisement at once. Ignored if the controller cannot batch
+     * @param maxPublishRate the maximum number of snapshots per second
+     */
+    public BleScanEngine(BluetoothAdapter bluetoothAdapter, Listener listener, long reportDelayMs, int maxPublishRate) {
+        this(new AdapterScanner(bluetoothAdapter), listener, reportDelayMs, maxPublishRate);
+    }
+
+    BleScanEngine(Scanner scanner, Listener listener, long reportDelayMs, int maxPublishRate) {
+        if (maxPublishRate <= 0) throw new IllegalArgumentException("The publish rate must be positive");
+        this.scanner = scanner;
+        this.listener = listener;
+        this.reportDelayMs = reportDelayMs;
+        this.publishIntervalMs = 1000 / maxPublishRate;
+    }
+
+    /**
+     * Starts a new scan, the devices found by a previous one are forgotten. Main thread only
+     * @param filters the filters of the scan, may be empty
+     * @param scanMode one of the {@code SCAN_MODE_*} of {@link ScanSettings}
+     */
+    public void start(List<ScanFilter> filters, int scanMode) {
+        if (scan != null) return;
+        if (!scanner.isEnabled()) {
+            Log.e(TAG, "No scanner available");
+            listener.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+            return;
+        }
+        long delay = scanner.isOffloadedScanBatchingSupported() ? reportDelayMs : 0;
+        Log.d(TAG, String.format(Locale.ROOT, "Start scanning, results batched for %d ms", delay));
+        scan = lastScan = new Scan(filters, delay);
+        scan.startScan(scanMode);
+    }
+
+    /**
+     * Restarts the running scan in another mode, the devices found are kept. Each restart counts
+     * as a start in the throttling of the scans by the system. Main thread only
+     * @param scanMode one of the {@code SCAN_MODE_*} of {@link ScanSettings}
+     */
+    public void setScanMode(int scanMode) {
+        Scan s = scan;
+        if (s == null) return;
+        // the results batched by the controller would be lost with the stopped scan
+        scanner.flushPendingScanResults(s);
+        scanner.stopScan(s);
+        s.startScan(scanMode);
+    }
+
+    /**
+     * Stops the scan and the thread of the engine, the results already received and the ones
+     * flushed from the controller are published. Main thread only
+     */
+    public void stop() {
+        Scan s = scan;
+        if (s == null) return;
+        scan = null;
+        s.stop();
+        Log.d(TAG, "Stop scanning");
+    }
+
+    public boolean isScanning() {
+        return scan != null;
+    }
+
+    /**
+     * @return the callbacks, results and snapshots of the last second of the running scan
+     */
+    public String getStats() {
+        Scan s = scan;
+        return s == null ? "" : s.stats;
+    }
+
+    /**
+     * @return the scan callbacks received by the running scan, or the last one once stopped,
+     *         batches included
+     */
+    public long getCallbackCount() {
+        Scan s = lastScan;
+        return s == null ? 0 : s.callbacks;
+    }
+
+    /**
+     * @return the batches received by the running scan, or the last one once stopped
+     */
+    public long getBatchCount() {
+        Scan s = lastScan;
+        return s == null ? 0 : s.batches;
+    }
+
+    /**
+     * @return the scan results received by the running scan, or the last one once stopped
+     */
+    public long getResultCount() {
+        Scan s = lastScan;
+        return s == null ? 0 : s.results;
+    }
+
+    /**
+     * @return the distinct devices found by the running scan, or the last one once stopped, a
+     *         device found again after expiring counts once
+     */
+    public long getDiscoveredCount() {
+        Scan s = lastScan;
+        return s == null ? 0 : s.discovered;
+    }
+
+    /**
+     * @return the snapshots published by the running scan, or the last one once stopped
+     */
+    public long getPublishCount() {
+        Scan s = lastScan;
+        return s == null ? 0 : s.publishes;
+    }
+
+    /*
+     * A scan and its thread. The callbacks are received on the main thread, the lists of the
+     * batches are not reused by the framework: they are handed as is to the thread of the scan.
+     * The single results are written in the ring by the main thread and read by the thread of
+     * the scan, a single drain message is pending at a time. Late results of a finished scan are
+     * dropped with its looper
+     */
+    private final class Scan extends ScanCallback {
+
+        private final List<ScanFilter> filters;
+        private final long reportDelayMs;
+        private final HandlerThread thread;
+        private final Handler handler;
+
+        // single results, written up to tail by the main thread and read from head by the thread
+        // of the scan
+        private final ScanResult[] ring = new ScanResult[RING_CAPACITY];
+        private volatile int head = 0, tail = 0;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        // results posted on their own while the ring was full, not aggregated yet
+        private final AtomicInteger overflowing = new AtomicInteger(0);
+
+        // main thread only, true from the stop until the flushed batch comes
+        private boolean awaitingFlush = false;
+
+        // the fields below are only used on the thread of the scan
+        private final SignalTracker tracker = new SignalTracker(STALE_AFTER_MS * 1000000L);
+        private final Runnable publishTask = this::publish;
+        private final Runnable statsTask = this::onStatsPeriod;
+        private final Runnable drainTask = this::drain;
+        private final Runnable finishTask = this::finish;
+        private boolean publishScheduled = false;
+        private long lastPublish;
+
+        // counters, written on the thread of the scan only
+        private volatile long callbacks = 0, batches = 0, results = 0, discovered = 0, publishes = 0;
+        private long statsStart, statsCallbacks = 0, statsResults = 0, statsPublishes = 0;
+        private volatile String stats = "";
+
+        Scan(List<ScanFilter> filters, long reportDelayMs) {
+            this.filters = filters;
+            this.reportDelayMs = reportDelayMs;
+            thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            statsStart = lastPublish = SystemClock.uptimeMillis();
+            handler.postAtTime(statsTask, statsStart + STATS_PERIOD_MS);
+        }
+
+        void startScan(int scanMode) {
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(scanMode)
+                    .setReportDelay(reportDelayMs)
+                    .build();
+            scanner.startScan(filters, settings, this);
+        }
+
+        void stop() {
+            scanner.flushPendingScanResults(this);
+            scanner.stopScan(this);
+            if (reportDelayMs > 0) {
+                // the batch pending in the controller comes later on the main thread, the thread
+                // of the scan is kept until then
+                awaitingFlush = true;
+                handler.postDelayed(finishTask, FLUSH_TIMEOUT_MS);
+            } else {
+                handler.post(finishTask);
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            int t = tail;
+            if (overflowing.get() > 0 || t - head == RING_CAPACITY) {
+                // the thread of the scan is late, rather allocate than lose a result. The results
+                // are posted until it caught up, after the older ones of the ring: in order
+                overflowing.incrementAndGet();
+                handler.post(() -> {
+                    drain();
+                    aggregate(Collections.singletonList(result), false);
+                    overflowing.decrementAndGet();
+                });
+                return;
+            }
+            ring[t & (RING_CAPACITY - 1)] = result;
+            tail = t + 1;
+            if (drainScheduled.compareAndSet(false, true)) {
+                handler.post(drainTask);
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            handler.post(() -> aggregate(results, true));
+            if (awaitingFlush) {
+                // the first batch after the stop is the flushed one, the scan can end
+                awaitingFlush = false;
+                handler.removeCallbacks(finishTask);
+                handler.post(finishTask);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed: " + errorCode);
+            if (scan == this) listener.onScanFailed(errorCode);
+        }
+
+        /*
+         * The results written after the flag is cleared schedule another drain
+         */
+        private void drain() {
+            drainScheduled.set(false);
+            int h = head, t = tail;
+            if (h == t) return;
+            for (int i = h; i != t; ++i) {
+                int index = i & (RING_CAPACITY - 1);
+                tracker.update(ring[index]);
+                ring[index] = null;
+            }
+            // the slots are handed back to the main thread once read
+            head = t;
+            callbacks += t - h;
+            results += t - h;
+            discovered = tracker.getDiscoveredCount();
+            schedulePublish();
+        }
+
+        private void aggregate(List<ScanResult> received, boolean batch) {
+            ++callbacks;
+            if (batch) ++batches;
+            results += received.size();
+            for (int i = 0, n = received.size(); i < n; ++i) {
+                tracker.update(received.get(i));
+            }
+            discovered = tracker.getDiscoveredCount();
+            schedulePublish();
+        }
+
+        /*
+         * Last snapshot of a stopped scan, the messages already queued are still handled
+         */
+        private void finish() {
+            handler.removeCallbacks(publishTask);
+            handler.removeCallbacks(statsTask);
+            publish();
+            thread.quitSafely();
+        }
+
+        private void schedulePublish() {
+            if (publishScheduled || !tracker.hasChanges()) return;
+            publishScheduled = true;
+            long next = Math.max(lastPublish + publishIntervalMs, SystemClock.uptimeMillis());
+            handler.postAtTime(publishTask, next);
+        }
+
+        /*
+         * The snapshot is a copy, the tracker keeps changing on the thread of the scan
+         */
+        private void publish() {
+            publishScheduled = false;
+            lastPublish = SystemClock.uptimeMillis();
+            if (!tracker.hasChanges()) return;
+
+            Snapshot snapshot = tracker.snapshot();
+            ++publishes;
+            mainHandler.post(() -> {
+                // the last snapshot of a stopped scan is still delivered, unless another started
+                Scan s = scan;
+                if (s == null || s == this) listener.onScanResults(snapshot);
+            });
+        }
+
+        private void onStatsPeriod() {
+            long now = SystemClock.uptimeMillis();
+            int expired = tracker.expire(SystemClock.elapsedRealtimeNanos());
+            if (expired > 0) schedulePublish();
+
+            float seconds = (now - statsStart) / 1000f;
+            stats = String.format(Locale.ROOT, "%.0f callbacks/s (%d batches in total), %.0f results/s, %.1f snapshots/s, %d devices (%d expired)",
+                    (callbacks - statsCallbacks) / seconds, batches, (results - statsResults) / seconds,
+                    (publishes - statsPublishes) / seconds, tracker.size(), expired);
+            Log.d(TAG, stats);
+            statsCallbacks = callbacks;
+            statsResults = results;
+            statsPublishes = publishes;
+            statsStart = now;
+            handler.postAtTime(statsTask, now + STATS_PERIOD_MS);
+        }
+
+    }
+
+}
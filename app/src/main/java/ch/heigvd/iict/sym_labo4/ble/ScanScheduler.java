@@ -0,0 +1,180 @@
+package ch.heigvd.iict.sym_labo4.ble;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Duty cycle of a {@link BleScanEngine}, adapted to the devices it finds.
+ *
+ * The scan runs in windows. A window finding a new device puts the scan in low latency mode,
+ * where the devices around are found the fastest; each window finding nothing steps down to the
+ * balanced then low power mode, whose windows are longer. After {@link #IDLE_TIMEOUT_MS} in low
+ * power mode without any new device, counted from the switch to low power, the scan stops. A
+ * device is new the first time the scan finds it, not when it comes back after expiring. The
+ * modes only change between windows, and never faster than the system allows: an app starting
+ * more than {@link #MAX_STARTS} scans in {@link #STARTS_PERIOD_MS} has its scans silently
+ * throttled.
+ *
+ * The discovery rate, in new devices per second, is averaged over the windows. Main thread only.
+ */
+public class ScanScheduler {
+
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    static final int MAX_STARTS = 5;
+    static final long STARTS_PERIOD_MS = 30000;
+    static final long IDLE_TIMEOUT_MS = 60000;
+
+    // weight of the last window in the discovery rate
+    private static final float RATE_SMOOTHING = 0.3f;
+
+    // from the cheapest to the fastest, windows long enough to stay within the starts allowed
+    private static final int[] MODES = {
+            ScanSettings.SCAN_MODE_LOW_POWER, ScanSettings.SCAN_MODE_BALANCED, ScanSettings.SCAN_MODE_LOW_LATENCY };
+    private static final long[] WINDOWS_MS = { 20000, 10000, 6000 };
+    private static final int FASTEST = MODES.length - 1;
+
+    /**
+     * Told when the scheduler stops by itself, on the main thread
+     */
+    public interface Listener {
+        void onScanStopped();
+    }
+
+    private final BleScanEngine engine;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable startTask = this::startScan;
+    private final Runnable windowTask = this::onWindowEnd;
+
+    // times of the last starts, the oldest at startIndex
+    private final long[] starts = new long[MAX_STARTS];
+    private int startIndex = 0;
+
+    private List<ScanFilter> filters = null;
+    private boolean running = false;
+    private int level = FASTEST;
+    private long windowStart = 0;
+    private long discoveredAtWindowStart = 0;
+    // time the scan entered low power mode, or last found a device in it
+    private long idleSince = 0;
+    private float discoveryRate = 0f;
+
+    /**
+     * @param engine the engine scanning, started and stopped by the scheduler
+     * @param listener told when the scan stops for lack of new devices
+     */
+    public ScanScheduler(BleScanEngine engine, Listener listener) {
+        this.engine = engine;
+        this.listener = listener;
+        Arrays.fill(starts, Long.MIN_VALUE / 2);
+    }
+
+    /**
+     * Starts scanning in low latency mode, later if the system would throttle the scan
+     * @param filters the filters of the scan, may be empty
+     */
+    public void start(List<ScanFilter> filters) {
+        if (running) return;
+        this.filters = filters;
+        running = true;
+        level = FASTEST;
+        discoveryRate = 0f;
+
+        long wait = throttleDelay(SystemClock.uptimeMillis());
+        if (wait > 0) {
+            Log.w(TAG, String.format(Locale.ROOT, "Too many scans started, waiting %d ms", wait));
+            handler.postDelayed(startTask, wait);
+        } else {
+            startScan();
+        }
+    }
+
+    public void stop() {
+        if (!running) return;
+        running = false;
+        handler.removeCallbacks(startTask);
+        handler.removeCallbacks(windowTask);
+        engine.stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the new devices per second, averaged over the last windows
+     */
+    public float getDiscoveryRate() {
+        return discoveryRate;
+    }
+
+    /**
+     * @return the current {@code SCAN_MODE_*} of {@link ScanSettings}
+     */
+    public int getScanMode() {
+        return MODES[level];
+    }
+
+    private void startScan() {
+        long now = SystemClock.uptimeMillis();
+        recordStart(now);
+        engine.start(filters, MODES[level]);
+        beginWindow(now);
+    }
+
+    private void beginWindow(long now) {
+        windowStart = now;
+        discoveredAtWindowStart = engine.getDiscoveredCount();
+        handler.postAtTime(windowTask, now + WINDOWS_MS[level]);
+    }
+
+    private void onWindowEnd() {
+        long now = SystemClock.uptimeMillis();
+        long found = engine.getDiscoveredCount() - discoveredAtWindowStart;
+        float rate = found * 1000f / Math.max(now - windowStart, 1);
+        discoveryRate += RATE_SMOOTHING * (rate - discoveryRate);
+
+        int target = found > 0 ? FASTEST : Math.max(level - 1, 0);
+        if (target == 0 && level == 0 && now - idleSince >= IDLE_TIMEOUT_MS) {
+            Log.d(TAG, "No new device for " + (now - idleSince) + " ms in low power mode, stop scanning");
+            stop();
+            listener.onScanStopped();
+            return;
+        }
+        if (target != level) {
+            if (throttleDelay(now) == 0) {
+                recordStart(now);
+                level = target;
+                if (level == 0) idleSince = now;
+                engine.setScanMode(MODES[level]);
+            } else {
+                Log.w(TAG, "Too many scans started, mode kept");
+                // a device found while stuck in low power mode still delays the stop
+                if (level == 0 && found > 0) idleSince = now;
+            }
+        }
+        Log.d(TAG, String.format(Locale.ROOT, "%d new devices, %.2f devices/s, scan mode %d",
+                found, discoveryRate, MODES[level]));
+        beginWindow(now);
+    }
+
+    private void recordStart(long now) {
+        starts[startIndex] = now;
+        startIndex = (startIndex + 1) % MAX_STARTS;
+    }
+
+    // time until a start is allowed, 0 if it is now
+    private long throttleDelay(long now) {
+        return Math.max(starts[startIndex] + STARTS_PERIOD_MS - now, 0);
+    }
+
+}
@@ -0,0 +1,275 @@
+package ch.heigvd.iict.sym_labo4.ble;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Signal model of the devices found by a scan, ranked by their filtered RSSI.
+ *
+ * Each advertisement updates a Kalman filter of the RSSI of its device, the interval between its
+ * advertisements and the time it was last seen; the devices not seen for a while are expired.
+ * The state lives in primitive arrays indexed by a slot per device, the slots of the expired
+ * devices are reused: nothing is allocated per advertisement, only when a device is found for the
+ * first time. The ranking is kept sorted incrementally, a device updated only moves past the
+ * neighbours its new estimate overtakes. Not thread safe.
+ */
+final class SignalTracker {
+
+    // the RSSI is modeled as constant, drifting with the movements of the devices: the variance
+    // of the estimate grows of PROCESS_NOISE per second, a measure has a deviation of ~6 dB
+    private static final float PROCESS_NOISE = 4f;
+    private static final float MEASUREMENT_NOISE = 36f;
+
+    // weight of the last interval in the average interval between advertisements
+    private static final float INTERVAL_SMOOTHING = 0.2f;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // expired devices remembered, beyond the ones expired the longest ago are forgotten: the
+    // private addresses rotate every few minutes, the set would otherwise grow with each of them
+    static final int SEEN_CAPACITY = 4096;
+
+    // what changed since the previous snapshot, per slot
+    private static final byte UNCHANGED = 0, UPDATED = 1, ADDED = 2;
+
+    private final long staleAfterNs;
+
+    // addresses of the devices to their slot. BluetoothDevice addresses are always upper case
+    private final Map<String, Integer> slots = new HashMap<>();
+    // addresses of the devices ever added, the expired ones included, the last expired last
+    private final Map<String, Boolean> seen =
+            new LinkedHashMap<String, Boolean>(INITIAL_CAPACITY, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > SEEN_CAPACITY;
+                }
+            };
+
+    // state of the devices, indexed by slot
+    private String[] addresses = new String[INITIAL_CAPACITY];
+    private ScanResult[] lastResults = new ScanResult[INITIAL_CAPACITY];
+    private float[] rssi = new float[INITIAL_CAPACITY];
+    private float[] variances = new float[INITIAL_CAPACITY];
+    // average interval between advertisements in seconds, 0 until the second one
+    private float[] intervals = new float[INITIAL_CAPACITY];
+    // in the elapsedRealtimeNanos() time base of the scan results
+    private long[] lastSeen = new long[INITIAL_CAPACITY];
+    private byte[] changes = new byte[INITIAL_CAPACITY];
+
+    // slots of the expired devices, reused first
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    // slots ever used
+    private int slotCount = 0;
+
+    // slots of the devices, strongest first, and position of each slot in the ranking
+    private int[] ranking = new int[INITIAL_CAPACITY];
+    private int[] positions = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    private int changed = 0;
+    private int removed = 0;
+    private long discovered = 0;
+
+    /**
+     * @param staleAfterNs the time after which a device not seen is expired
+     */
+    SignalTracker(long staleAfterNs) {
+        this.staleAfterNs = staleAfterNs;
+    }
+
+    /**
+     * Updates the model of a device with its advertisement, the device is added the first time
+     * @param result the scan result
+     */
+    void update(ScanResult result) {
+        String address = result.getDevice().getAddress();
+        long timestamp = result.getTimestampNanos();
+        Integer known = slots.get(address);
+        if (known == null) {
+            int slot = allocate(address);
+            lastResults[slot] = result;
+            rssi[slot] = result.getRssi();
+            variances[slot] = MEASUREMENT_NOISE;
+            intervals[slot] = 0f;
+            lastSeen[slot] = timestamp;
+            changes[slot] = ADDED;
+            ++changed;
+            // a device expired then found again is not new
+            if (seen.put(address, Boolean.TRUE) == null) ++discovered;
+
+            ranking[size] = slot;
+            positions[slot] = size;
+            ++size;
+            reposition(slot);
+            return;
+        }
+
+        int slot = known;
+        // the results of a batch may come out of order
+        float seconds = Math.max(timestamp - lastSeen[slot], 0L) / 1e9f;
+        variances[slot] += PROCESS_NOISE * seconds;
+        float gain = variances[slot] / (variances[slot] + MEASUREMENT_NOISE);
+        rssi[slot] += gain * (result.getRssi() - rssi[slot]);
+        variances[slot] *= 1f - gain;
+        if (seconds > 0f) {
+            intervals[slot] = intervals[slot] == 0f
+                    ? seconds : intervals[slot] + INTERVAL_SMOOTHING * (seconds - intervals[slot]);
+            lastSeen[slot] = timestamp;
+            lastResults[slot] = result;
+        }
+        if (changes[slot] == UNCHANGED) {
+            changes[slot] = UPDATED;
+            ++changed;
+        }
+        reposition(slot);
+    }
+
+    /**
+     * Removes the devices not seen for too long, in a single pass over the ranking
+     * @param nowNs the current time, in the {@link android.os.SystemClock#elapsedRealtimeNanos()}
+     *              time base
+     * @return the number of devices removed
+     */
+    int expire(long nowNs) {
+        int kept = 0;
+        for (int i = 0; i < size; ++i) {
+            int slot = ranking[i];
+            if (nowNs - lastSeen[slot] > staleAfterNs) {
+                // a device found and lost between two snapshots was never shown
+                if (changes[slot] != ADDED) ++removed;
+                // remembered from its expiry on, not from when it was added
+                seen.get(addresses[slot]);
+                free(slot);
+            } else {
+                ranking[kept] = slot;
+                positions[slot] = kept;
+                ++kept;
+            }
+        }
+        int count = size - kept;
+        size = kept;
+        return count;
+    }
+
+    void clear() {
+        slots.clear();
+        seen.clear();
+        Arrays.fill(addresses, 0, slotCount, null);
+        Arrays.fill(lastResults, 0, slotCount, null);
+        Arrays.fill(changes, 0, slotCount, UNCHANGED);
+        slotCount = freeCount = size = 0;
+        changed = removed = 0;
+        discovered = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the distinct devices added since the tracker was created or cleared, a device
+     *         added again after expiring counts once, unless {@link #SEEN_CAPACITY} devices
+     *         expired since
+     */
+    long getDiscoveredCount() {
+        return discovered;
+    }
+
+    /**
+     * @return true if a device was added, updated or removed since the previous snapshot
+     */
+    boolean hasChanges() {
+        return changed > 0 || removed > 0;
+    }
+
+    /**
+     * Copies the ranking and the state of the devices, then forgets the changes
+     * @return the snapshot, owning its copies
+     */
+    BleScanEngine.Snapshot snapshot() {
+        List<ScanResult> results = new ArrayList<>(size);
+        float[] filteredRssi = new float[size];
+        float[] rates = new float[size];
+        int added = 0, updated = 0;
+        for (int i = 0; i < size; ++i) {
+            int slot = ranking[i];
+            results.add(lastResults[slot]);
+            filteredRssi[i] = rssi[slot];
+            rates[i] = intervals[slot] > 0f ? 1f / intervals[slot] : 0f;
+            if (changes[slot] == ADDED) ++added;
+            else if (changes[slot] == UPDATED) ++updated;
+            changes[slot] = UNCHANGED;
+        }
+        BleScanEngine.Snapshot snapshot = new BleScanEngine.Snapshot(results, filteredRssi, rates, added, updated, removed);
+        changed = removed = 0;
+        return snapshot;
+    }
+
+    /*
+     * Moves a slot whose estimate changed to its place, shifting the devices it overtakes
+     */
+    private void reposition(int slot) {
+        int position = positions[slot];
+        while (position > 0 && before(slot, ranking[position - 1])) {
+            ranking[position] = ranking[position - 1];
+            positions[ranking[position]] = position;
+            --position;
+        }
+        while (position < size - 1 && before(ranking[position + 1], slot)) {
+            ranking[position] = ranking[position + 1];
+            positions[ranking[position]] = position;
+            ++position;
+        }
+        ranking[position] = slot;
+        positions[slot] = position;
+    }
+
+    // strongest first, devices of same estimate ordered by address: the order is total
+    private boolean before(int a, int b) {
+        if (rssi[a] != rssi[b]) return rssi[a] > rssi[b];
+        return addresses[a].compareTo(addresses[b]) < 0;
+    }
+
+    private int allocate(String address) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == addresses.length) grow(2 * slotCount);
+            slot = slotCount++;
+        }
+        addresses[slot] = address;
+        slots.put(address, slot);
+        return slot;
+    }
+
+    private void free(int slot) {
+        slots.remove(addresses[slot]);
+        addresses[slot] = null;
+        lastResults[slot] = null;
+        if (changes[slot] == ADDED || changes[slot] == UPDATED) --changed;
+        changes[slot] = UNCHANGED;
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void grow(int capacity) {
+        addresses = Arrays.copyOf(addresses, capacity);
+        lastResults = Arrays.copyOf(lastResults, capacity);
+        rssi = Arrays.copyOf(rssi, capacity);
+        variances = Arrays.copyOf(variances, capacity);
+        intervals = Arrays.copyOf(intervals, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        changes = Arrays.copyOf(changes, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        ranking = Arrays.copyOf(ranking, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+    }
+
+}
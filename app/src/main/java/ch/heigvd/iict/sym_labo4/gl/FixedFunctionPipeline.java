@@ -0,0 +1,72 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.opengl.Matrix;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import ch.heigvd.iict.sym_labo4.gl.objects.Frustum;
+import ch.heigvd.iict.sym_labo4.gl.objects.GLStateCache;
+import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+
+/**
+ * OpenGL ES 1.x pipeline: the matrices are loaded in the fixed-function matrix stacks, the
+ * model-view matrix is computed on the CPU and loaded with a single call per frame
+ */
+class FixedFunctionPipeline implements RenderPipeline {
+
+    private final float[] projection = new float[16];
+    private final float[] view = new float[16];
+    private final float[] modelView = new float[16];
+    // only used to cull the meshes, GL multiplies the projection itself
+    private final float[] mvp = new float[16];
+    private final Frustum frustum = new Frustum();
+
+    @Override
+    public void onSurfaceCreated(GL10 gl) {
+        // Set the background color to black ( rgba ).
+        gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        // Enable Smooth Shading, default not really needed.
+        gl.glShadeModel(GL10.GL_SMOOTH);
+        // Depth buffer setup.
+        gl.glClearDepthf(1.0f);
+        // Enables depth testing.
+        gl.glEnable(GL10.GL_DEPTH_TEST);
+        // The type of depth testing to do.
+        gl.glDepthFunc(GL10.GL_LEQUAL);
+        // Really nice perspective calculations.
+        gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height, float[] projection, float[] view) {
+        // Sets the current view port to the new size.
+        gl.glViewport(0, 0, width, height);
+        gl.glMatrixMode(GL10.GL_PROJECTION);
+        gl.glLoadMatrixf(projection, 0);
+        // the model-view matrix is loaded at each frame
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+        System.arraycopy(projection, 0, this.projection, 0, 16);
+        System.arraycopy(view, 0, this.view, 0, 16);
+    }
+
+    @Override
+    public void upload(GL10 gl, ObjLoader model, GLStateCache state) {
+        model.upload(gl, state);
+    }
+
+    @Override
+    public void beginFrame(GL10 gl, float[] rotation, GLStateCache state) {
+        // Clears the screen and depth buffer.
+        gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
+        Matrix.multiplyMM(modelView, 0, view, 0, rotation, 0);
+        gl.glLoadMatrixf(modelView, 0);
+        Matrix.multiplyMM(mvp, 0, projection, 0, modelView, 0);
+        frustum.set(mvp);
+    }
+
+    @Override
+    public void draw(GL10 gl, ObjLoader model, int lod, GLStateCache state) {
+        model.draw(gl, lod, state, frustum);
+    }
+
+}
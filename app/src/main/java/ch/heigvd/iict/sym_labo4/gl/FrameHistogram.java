@@ -0,0 +1,88 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with a bounded relative error, in the manner of HdrHistogram: each
+ * power of two range is split in {@link #SUB_BUCKETS} linear buckets, the values are known within
+ * about 3%. Recording is a few shifts and an increment, nothing is allocated after construction.
+ */
+final class FrameHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts;
+    private long total = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param highestValue the largest value recorded precisely, larger ones count as it
+     */
+    FrameHistogram(long highestValue) {
+        counts = new long[index(highestValue) + 1];
+    }
+
+    /**
+     * @param value the value to record, in any unit (e.g. microseconds)
+     */
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[Math.min(index(value), counts.length - 1)]++;
+        ++total;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        total = sum = max = 0;
+    }
+
+    long getCount() {
+        return total;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long getValueAtPercentile(double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(lowestValue(i + 1) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    /*
+     * The values below 2 * SUB_BUCKETS have their own bucket, the larger ones are split by
+     * their highest bit then by their next SUB_BITS bits
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long lowestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+}
@@ -0,0 +1,77 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Requests the redraws of a {@link GLSurfaceView} in {@link GLSurfaceView#RENDERMODE_WHEN_DIRTY}
+ * mode, paced on the vsync of the display.
+ *
+ * The requests are coalesced: any number of them between two vsyncs gives a single redraw, at
+ * the next {@link Choreographer} frame. Nothing is drawn while no request comes. The sources
+ * already paced on the vsync redraw with {@link #renderNow()} instead: waiting for another
+ * Choreographer frame would delay their frame by one more vsync.
+ */
+public class FramePacer implements Choreographer.FrameCallback {
+
+    private final GLSurfaceView view;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // true while a frame callback is pending
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // the Choreographer of the main thread must be used from the main thread
+    private final Runnable postFrameCallback = () -> Choreographer.getInstance().postFrameCallback(this);
+
+    /**
+     * @param view the view to redraw, its render mode should be RENDERMODE_WHEN_DIRTY
+     */
+    public FramePacer(GLSurfaceView view) {
+        this.view = view;
+    }
+
+    /**
+     * Asks for a redraw at the next vsync, can be called from any thread
+     */
+    public void requestFrame() {
+        if (!scheduled.compareAndSet(false, true)) {
+            // already requested for the next frame
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            postFrameCallback.run();
+        } else {
+            mainHandler.post(postFrameCallback);
+        }
+    }
+
+    /**
+     * Asks for a redraw at once, for the callers already running once per vsync (e.g. in their
+     * own {@link Choreographer} callback). Can be called from any thread, the view coalesces
+     * the requests made before it draws
+     */
+    public void renderNow() {
+        view.requestRender();
+    }
+
+    /**
+     * Drops a pending request, to be called on the main thread (e.g. when the view is paused)
+     */
+    public void cancel() {
+        Choreographer.getInstance().removeFrameCallback(this);
+        mainHandler.removeCallbacks(postFrameCallback);
+        scheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // the requests coming from now on are for the next frame
+        scheduled.set(false);
+        view.requestRender();
+    }
+
+}
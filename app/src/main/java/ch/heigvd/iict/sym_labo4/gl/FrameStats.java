@@ -0,0 +1,180 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Locale;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import ch.heigvd.iict.sym_labo4.gl.objects.RenderStats;
+
+/**
+ * Frame time instrumentation of the GL thread: histograms of the CPU time (and of the GPU time
+ * where timer queries are available), draw calls and triangles, and frames missing their vsync.
+ *
+ * The measures are summarized every {@link #DUMP_PERIOD_NS}: the summary is logged and handed to
+ * an optional listener (e.g. an overlay), then the counters restart. Nothing is allocated while
+ * recording, only the summary is built once per period.
+ *
+ * The summaries are built when a frame ends, a view drawing on demand may draw nothing for a
+ * while: while a listener is set, a timer of the main thread marks the stats idle when no frame
+ * was drawn during a whole period, the next frame starts a new period.
+ */
+public class FrameStats {
+
+    private static final String TAG = FrameStats.class.getSimpleName();
+
+    private static final long DUMP_PERIOD_NS = 2000000000L;
+    private static final long HIGHEST_US = 1000000L;
+
+    /**
+     * Receives the summaries, on the GL thread, or on the main thread when the stats go idle
+     */
+    public interface Listener {
+        void onStats(String summary);
+    }
+
+    private final FrameHistogram cpuTimes = new FrameHistogram(HIGHEST_US);
+    private final FrameHistogram gpuTimes = new FrameHistogram(HIGHEST_US);
+    private final RenderStats renderStats = new RenderStats();
+    private GpuTimer gpuTimer = null;
+
+    // a frame taking longer than a vsync period misses its vsync, 60 Hz until the display is known
+    private volatile long frameBudgetNs = 1000000000L / 60;
+
+    private long frameStart = 0;
+    private long periodStart = 0;
+    // frames whose CPU or GPU time exceeds the budget
+    private long cpuDropped = 0;
+    private long gpuDropped = 0;
+    private long drawCalls = 0;
+    private long culledMeshes = 0;
+    private long triangles = 0;
+    private long glCalls = 0;
+    private long skippedGlCalls = 0;
+
+    private volatile Listener listener = null;
+    private volatile String summary = "";
+
+    // end of the last frame, and true once no frame was drawn for a period
+    private volatile long lastFrameEnd = 0;
+    private volatile boolean idle = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable idleCheck = this::checkIdle;
+
+    /**
+     * Sets the listener, the stats are checked for idleness while there is one. Main thread only
+     * @param listener receives the summaries, null to only log them
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        mainHandler.removeCallbacks(idleCheck);
+        if (listener != null) {
+            mainHandler.postDelayed(idleCheck, DUMP_PERIOD_NS / 1000000);
+        }
+    }
+
+    /*
+     * The vsync period of the display, the frames of the current period are counted with it
+     */
+    void setFrameBudget(long frameBudgetNs) {
+        this.frameBudgetNs = frameBudgetNs;
+    }
+
+    /**
+     * @return the summary of the last period
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /*
+     * A new context drops the queries of the previous one
+     */
+    void onSurfaceCreated(GL10 gl) {
+        gpuTimer = GpuTimer.create(gl);
+        Log.d(TAG, gpuTimer != null ? "GPU timer queries available" : "No GPU timer queries");
+    }
+
+    /*
+     * Returns the counters to fill while drawing the frame
+     */
+    RenderStats beginFrame() {
+        frameStart = System.nanoTime();
+        if (idle) {
+            // the frames of the period interrupted by the pause are not summarized
+            idle = false;
+            reset(frameStart);
+        }
+        if (periodStart == 0) periodStart = frameStart;
+        renderStats.reset();
+        if (gpuTimer != null) gpuTimer.begin();
+        return renderStats;
+    }
+
+    void endFrame() {
+        long now = System.nanoTime();
+        long cpuTime = now - frameStart;
+        long budget = frameBudgetNs;
+        cpuTimes.record(cpuTime / 1000);
+        if (cpuTime > budget) ++cpuDropped;
+        drawCalls += renderStats.getDrawCalls();
+        culledMeshes += renderStats.getCulledMeshes();
+        triangles += renderStats.getTriangles();
+        glCalls += renderStats.getGlCalls();
+        skippedGlCalls += renderStats.getSkippedGlCalls();
+        if (gpuTimer != null) {
+            gpuTimer.end();
+            gpuDropped += gpuTimer.collect(gpuTimes, budget / 1000);
+        }
+
+        if (now - periodStart >= DUMP_PERIOD_NS) {
+            dump(now);
+        }
+        lastFrameEnd = now;
+    }
+
+    /*
+     * Main thread, the counters are left to the GL thread
+     */
+    private void checkIdle() {
+        Listener l = this.listener;
+        if (l == null) return;
+        if (!idle && System.nanoTime() - lastFrameEnd >= DUMP_PERIOD_NS) {
+            idle = true;
+            summary = "idle, no frame drawn";
+            Log.i(TAG, summary);
+            l.onStats(summary);
+        }
+        mainHandler.postDelayed(idleCheck, DUMP_PERIOD_NS / 1000000);
+    }
+
+    private void dump(long now) {
+        long frames = cpuTimes.getCount();
+        float seconds = (now - periodStart) / 1e9f;
+        String gpu = gpuTimer == null ? "n/a" : String.format(Locale.ROOT, "p50 %.2f p99 %.2f ms",
+                gpuTimes.getValueAtPercentile(50) / 1e3, gpuTimes.getValueAtPercentile(99) / 1e3);
+        summary = String.format(Locale.ROOT,
+                "%.1f fps, cpu p50 %.2f p90 %.2f p99 %.2f max %.2f ms, gpu %s, %d draws (%d culled) %d tris/frame, %d gl calls/frame (%d without state cache), dropped %d cpu %d gpu (%.1f%%) at %.0f Hz",
+                frames / seconds,
+                cpuTimes.getValueAtPercentile(50) / 1e3, cpuTimes.getValueAtPercentile(90) / 1e3,
+                cpuTimes.getValueAtPercentile(99) / 1e3, cpuTimes.getMax() / 1e3, gpu,
+                drawCalls / Math.max(frames, 1), culledMeshes / Math.max(frames, 1), triangles / Math.max(frames, 1),
+                glCalls / Math.max(frames, 1), (glCalls + skippedGlCalls) / Math.max(frames, 1),
+                cpuDropped, gpuDropped, 100f * (cpuDropped + gpuDropped) / Math.max(frames, 1), 1e9 / frameBudgetNs);
+        Log.i(TAG, summary);
+        Listener l = this.listener;
+        if (l != null) l.onStats(summary);
+        reset(now);
+    }
+
+    private void reset(long now) {
+        cpuTimes.reset();
+        gpuTimes.reset();
+        cpuDropped = gpuDropped = drawCalls = culledMeshes = triangles = glCalls = skippedGlCalls = 0;
+        periodStart = now;
+    }
+
+}
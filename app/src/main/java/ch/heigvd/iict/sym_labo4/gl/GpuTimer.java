@@ -0,0 +1,90 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.opengl.GLES30;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Measures the GPU time of the frames with timer queries (EXT_disjoint_timer_query), only
+ * available on OpenGL ES 3 contexts exposing the extension.
+ *
+ * The results come a few frames later, several queries are used in turn so the GL thread never
+ * waits for the GPU. Must be used on the GL thread, and re-created with each context.
+ */
+final class GpuTimer {
+
+    private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    private static final int QUERIES = 4;
+
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private final int[] result = new int[1];
+    private int current = 0;
+    private boolean running = false;
+
+    private GpuTimer() {
+        GLES30.glGenQueries(QUERIES, queries, 0);
+    }
+
+    /**
+     * @param gl the current context
+     * @return a timer, or null if the context cannot measure the GPU time
+     */
+    static GpuTimer create(GL10 gl) {
+        String version = gl.glGetString(GL10.GL_VERSION);
+        String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+        if (version == null || !version.startsWith("OpenGL ES 3")
+                || extensions == null || !extensions.contains(EXTENSION)) {
+            return null;
+        }
+        return new GpuTimer();
+    }
+
+    /**
+     * Starts measuring the commands of the frame, skipped if all the queries are still pending
+     */
+    void begin() {
+        if (pending[current]) return;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[current]);
+        running = true;
+    }
+
+    void end() {
+        if (!running) return;
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        pending[current] = true;
+        running = false;
+        current = (current + 1) % QUERIES;
+    }
+
+    /**
+     * Records the available results
+     * @param histogram receives the GPU times, in microseconds
+     * @param budgetUs the time available for a frame
+     * @return the number of recorded frames over the budget
+     */
+    int collect(FrameHistogram histogram, long budgetUs) {
+        int over = 0;
+        // a disjoint operation (e.g. frequency change) invalidates the pending measures
+        GLES30.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+        boolean disjoint = result[0] != 0;
+        for (int i = 0; i < QUERIES; ++i) {
+            if (!pending[i]) continue;
+            GLES30.glGetQueryObjectuiv(queries[i], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] == 0) continue;
+            GLES30.glGetQueryObjectuiv(queries[i], GLES30.GL_QUERY_RESULT, result, 0);
+            if (!disjoint) {
+                // nanoseconds, unsigned 32 bits
+                long time = (result[0] & 0xFFFFFFFFL) / 1000;
+                histogram.record(time);
+                if (time > budgetUs) ++over;
+            }
+            pending[i] = false;
+        }
+        return over;
+    }
+
+}
@@ -0,0 +1,93 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ch.heigvd.iict.sym_labo4.gl.objects.ModelCache;
+import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+
+/**
+ * Loads a model from the assets on a background thread.
+ *
+ * The progression (parsed bytes) and the loaded model are published as LiveData, the model must
+ * then be handed to the GL thread, see {@link OpenGLRenderer#setModel(ObjLoader)}. A load that
+ * fails, unreadable asset or malformed model, publishes its error instead of the model.
+ */
+public class ModelLoader {
+
+    private static final String TAG = ModelLoader.class.getSimpleName();
+
+    // models are loaded one at a time, the parse itself can use several threads
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ModelLoader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MutableLiveData<Float> mProgress = new MutableLiveData<>();
+    private final MutableLiveData<ObjLoader> mModel = new MutableLiveData<>();
+    private final MutableLiveData<Exception> mError = new MutableLiveData<>();
+    private Future<?> future = null;
+
+    private ModelLoader() {
+        this.mProgress.setValue(0f);
+    }
+
+    /**
+     * Starts loading a model
+     * @param ctx the context used to reach the assets
+     * @param assetName the name of the .obj asset
+     * @param options the options used to build the meshes
+     * @return the handle of the load
+     */
+    public static ModelLoader load(Context ctx, String assetName, ObjLoader.Options options) {
+        ModelLoader loader = new ModelLoader();
+        final Context appCtx = ctx.getApplicationContext();
+        loader.future = EXECUTOR.submit(() -> {
+            try {
+                ObjLoader model = ModelCache.get(appCtx, assetName, options, (read, total) -> {
+                    // postValue only keeps the last value until the main thread runs it
+                    if (total > 0) loader.mProgress.postValue((float) read / total);
+                });
+                loader.mProgress.postValue(1f);
+                loader.mModel.postValue(model);
+            } catch (IOException | RuntimeException e) {
+                // the Future would keep the exception to itself, nobody reads it
+                Log.e(TAG, "Cannot load " + assetName, e);
+                loader.mError.postValue(e);
+            }
+        });
+        return loader;
+    }
+
+    /**
+     * @return the progression of the load, from 0 to 1
+     */
+    public LiveData<Float> getProgress() { return mProgress; }
+
+    /**
+     * @return the loaded model, set once the load is done
+     */
+    public LiveData<ObjLoader> getModel() { return mModel; }
+
+    /**
+     * @return the error of the load, set if it failed, the model is then never set
+     */
+    public LiveData<Exception> getError() { return mError; }
+
+    /**
+     * Stops the load if it has not started yet
+     */
+    public void cancel() {
+        if (future != null) future.cancel(false);
+    }
+
+}
@@ -1,41 +1,191 @@
 package ch.heigvd.iict.sym_labo4.gl;
 
-import java.io.IOException;
-import java.io.InputStream;
-
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import android.content.Context;
-import android.opengl.GLU;
 import android.opengl.GLSurfaceView.Renderer;
+import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.Locale;
+
 import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+import ch.heigvd.iict.sym_labo4.gl.objects.GLStateCache;
+import ch.heigvd.iict.sym_labo4.sensors.OrientationPredictor;
+import ch.heigvd.iict.sym_labo4.sensors.Quaternions;
 
 public class OpenGLRenderer implements Renderer {
 
     private static final String TAG = OpenGLRenderer.class.getSimpleName();
 
-    //60 frame per second
-    private static long frameInterval = Math.round(1000f / 60f);
+    // camera: distance to the model and vertical field of view (degrees)
+    private static final float EYE_DISTANCE = 50f;
+    private static final float FIELD_OF_VIEW = 45f;
+
+    // projected radius (pixels) under which the next level of detail is drawn, halved per level
+    private static final float FULL_DETAIL_RADIUS = 240f;
+
+    // smoothing of the measured latency and period of its log
+    private static final float LATENCY_SMOOTHING = 0.1f;
+    private static final long LATENCY_LOG_PERIOD_NS = 1000000000L;
+
+    // a buffer queued before a vsync is composed at that vsync and shown at the next one
+    private static final int PRESENT_DELAY_FRAMES = 1;
+
+    // clipping planes of the projection
+    private static final float NEAR = 0.1f;
+    private static final float FAR = 100f;
+
+    // GL calls of the version of the context
+    private final RenderPipeline pipeline;
+
+    // camera matrices, computed when the surface changes
+    private final float[] projection = new float[16];
+    private final float[] view = new float[16];
+
+    // drawn until the real model is loaded
+    private final ObjLoader placeholder = ObjLoader.createPlaceholder();
 
     private ObjLoader arrow3DModel = null;
 
-    // identity rotation matrix
-    private float[] rotMatrix = {   1f, 0f ,0f ,0f,
+    // true once the model is uploaded in the current context
+    private boolean modelUploaded = false;
+
+    // size on the screen of one unit at the model distance, set by onSurfaceChanged
+    private float pixelsPerUnit = 0f;
+
+    // requests the redraws when drawing on demand, null when drawing continuously
+    private volatile FramePacer framePacer = null;
+
+    // rotation matrix handed from the sensor thread to the GL thread, identity at first
+    private final TripleBuffer rotMatrix = new TripleBuffer(new float[] {
+                                    1f, 0f ,0f ,0f,
                                     0f, 1f ,0f ,0f,
                                     0f, 0f ,1f ,0f,
-                                    0f, 0f ,0f ,1f };
-
-	public OpenGLRenderer(Context ctx) {
-        try {
-            InputStream in = ctx.getAssets().open("arrow.obj");
-            this.arrow3DModel = new ObjLoader(in);
-        } catch (IOException e) {
-            Log.e(TAG, "", e);
-        }
-	}
+                                    0f, 0f ,0f ,1f });
+
+    // extrapolates the orientation to the display of the frame, null to draw the last sample
+    private volatile OrientationPredictor predictor = null;
+    private final float[] sampleOrientation = new float[4];
+    private final float[] predictedOrientation = new float[4];
+    private final float[] predictedMatrix = new float[16];
+    private long lastSampleTimestamp = 0;
+
+    // frame times, draw calls and dropped frames
+    private final FrameStats frameStats = new FrameStats();
+
+    // GL state set by the meshes, skips the redundant calls
+    private final GLStateCache stateCache = new GLStateCache();
+
+    // vsync of the display: period, and time of a recent one in the System.nanoTime() time base
+    private volatile long vsyncPeriodNs = 1000000000L / 60;
+    private volatile long lastVsyncNs = 0;
+
+    // time the orientation of the frame was predicted for, 0 when it was not
+    private long predictionTarget = 0;
+
+    // time from the sensor event to the display of the frame showing it, and the part of it
+    // not compensated by the prediction, smoothed
+    private volatile long latencyNs = 0;
+    private volatile long residualLatencyNs = 0;
+    private long lastMeasuredTimestamp = 0;
+    private long lastLatencyLog = 0;
+
+    /**
+     * Renderer of an OpenGL ES 1.x context, with the fixed-function pipeline
+     */
+    public OpenGLRenderer() {
+        this(1);
+    }
+
+    /**
+     * @param glEsVersion the major version of the context created by the view (see
+     *                    {@link android.opengl.GLSurfaceView#setEGLContextClientVersion(int)}):
+     *                    1 for the fixed-function pipeline, 2 for shaders, 3 for shaders and
+     *                    vertex array objects
+     */
+    public OpenGLRenderer(int glEsVersion) {
+        this.pipeline = glEsVersion >= 2 ? new ShaderPipeline(glEsVersion >= 3) : new FixedFunctionPipeline();
+        Log.d(TAG, "Rendering with " + this.pipeline.getClass().getSimpleName() + ", OpenGL ES " + glEsVersion);
+    }
+
+    /**
+     * Replaces the drawn model, must be called on the GL thread
+     * (see {@link android.opengl.GLSurfaceView#queueEvent(Runnable)})
+     * @param model the loaded model
+     */
+    public void setModel(ObjLoader model) {
+        this.arrow3DModel = model;
+        this.modelUploaded = false;
+        requestFrame();
+    }
+
+    /**
+     * Draws on demand: a frame is requested each time the drawn orientation or model changes,
+     * at once for the orientation and at the next vsync otherwise.
+     * The view must be in {@link android.opengl.GLSurfaceView#RENDERMODE_WHEN_DIRTY} mode
+     * @param framePacer the pacer of the view, null to go back to continuous drawing
+     */
+    public void setFramePacer(FramePacer framePacer) {
+        this.framePacer = framePacer;
+    }
+
+    /**
+     * Enables the prediction of the orientation, to compensate the latency between the sensors
+     * and the display. Needs the timestamps given to {@link #swapRotMatrix(float[], long)}
+     * @param predictor the predictor, null to draw the last received orientation
+     */
+    public void setPredictor(OrientationPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * @param refreshRate the refresh rate of the display, in frames per second, also the budget
+     *                    of the frames counted by the {@link FrameStats}
+     */
+    public void setRefreshRate(float refreshRate) {
+        this.vsyncPeriodNs = Math.round(1e9 / refreshRate);
+        this.frameStats.setFrameBudget(this.vsyncPeriodNs);
+    }
+
+    /**
+     * Gives the time of a vsync, from which the display of the frames is predicted. Can be
+     * called from any thread
+     * @param frameTimeNanos the frame time of a {@link android.view.Choreographer} callback
+     */
+    public void onVsync(long frameTimeNanos) {
+        this.lastVsyncNs = frameTimeNanos;
+    }
+
+    /**
+     * @return the mean time between a sensor event and the expected display of the frame
+     *         showing it
+     */
+    public long getLatencyNs() {
+        return latencyNs;
+    }
+
+    /**
+     * @return the mean part of {@link #getLatencyNs()} not compensated by the prediction: the
+     *         time between the instant the orientation was predicted for and the display.
+     *         The whole latency when there is no prediction
+     */
+    public long getResidualLatencyNs() {
+        return residualLatencyNs;
+    }
+
+    /**
+     * @return the frame time instrumentation, summarized periodically
+     */
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    private void requestFrame() {
+        FramePacer pacer = this.framePacer;
+        if (pacer != null) pacer.requestFrame();
+    }
 
 	/*
 	 * (non-Javadoc)
@@ -45,18 +195,15 @@ public class OpenGLRenderer implements Renderer {
 	 * .khronos.opengles.GL10, javax.microedition.khronos.egl.EGLConfig)
 	 */
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-		// Set the background color to black ( rgba ).
-		gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-		// Enable Smooth Shading, default not really needed.
-		gl.glShadeModel(GL10.GL_SMOOTH);
-		// Depth buffer setup.
-		gl.glClearDepthf(1.0f);
-		// Enables depth testing.
-		gl.glEnable(GL10.GL_DEPTH_TEST);
-		// The type of depth testing to do.
-		gl.glDepthFunc(GL10.GL_LEQUAL);
-		// Really nice perspective calculations.
-		gl.glHint(GL10.GL_PERSPECTIVE_CORRECTION_HINT, GL10.GL_NICEST);
+		this.pipeline.onSurfaceCreated(gl);
+		// the capabilities of the context are detected before uploading to it
+		this.stateCache.onContextCreated(gl);
+		// (Re-)upload the geometry, a new surface means a new context
+		this.pipeline.upload(gl, this.placeholder, this.stateCache);
+		this.modelUploaded = false;
+		this.frameStats.onSurfaceCreated(gl);
+		// the upload changed the bound buffers
+		this.stateCache.invalidate();
 	}
 
 	/*
@@ -68,37 +215,28 @@ public class OpenGLRenderer implements Renderer {
 	 */
 
 	public void onDrawFrame(GL10 gl) {
-        // get the time at the start of the frame
-        long time = System.currentTimeMillis();
-
-		// Clears the screen and depth buffer.
-		gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
-		// Replace the current matrix with the identity matrix
-		gl.glLoadIdentity();
-
-        GLU.gluLookAt(gl, 0f, 0f, 50f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
-
-        //we save current matrix stack
-		gl.glPushMatrix();
-            //we apply rotation
-            gl.glMultMatrixf(rotMatrix, 0);
-            //we draw the arrow
-			this.arrow3DModel.draw(gl);
-        //we restore matric stack
-		gl.glPopMatrix();
-
-        // get the time taken to render the frame
-        long time2 = System.currentTimeMillis() - time;
-
-        // if time elapsed is less than the frame interval
-        if(time2 < frameInterval){
-            try {
-                // sleep the thread for the remaining time until the interval has elapsed
-                Thread.sleep(frameInterval - time2);
-            } catch (InterruptedException e) { /* InterruptedException */}
+        // start measuring the frame
+        this.stateCache.setStats(this.frameStats.beginFrame());
+
+		// clears and applies the rotation to the camera matrices
+		this.pipeline.beginFrame(gl, currentRotation(), this.stateCache);
+
+        //we draw the arrow, or the placeholder while it is loading
+        if(this.arrow3DModel != null) {
+            if(!this.modelUploaded) {
+                this.pipeline.upload(gl, this.arrow3DModel, this.stateCache);
+                this.modelUploaded = true;
+                // the upload changed the bound buffers
+                this.stateCache.invalidate();
+            }
+            this.pipeline.draw(gl, this.arrow3DModel, selectLevelOfDetail(this.arrow3DModel), this.stateCache);
         } else {
-            Log.w(TAG, "Slower than 60 fps");
+            this.pipeline.draw(gl, this.placeholder, 0, this.stateCache);
         }
+
+        // the pace is given by the vsync (swap of the buffers), no need to wait here
+        this.frameStats.endFrame();
+        measureLatency();
 	}
 
 	/*
@@ -109,29 +247,109 @@ public class OpenGLRenderer implements Renderer {
 	 * .khronos.opengles.GL10, int, int)
 	 */
 	public void onSurfaceChanged(GL10 gl, int width, int height) {
-		// Sets the current view port to the new size.
-		gl.glViewport(0, 0, width, height);
-		// Select the projection matrix
-		gl.glMatrixMode(GL10.GL_PROJECTION);
-		// Reset the projection matrix
-		gl.glLoadIdentity();
-		// Calculate the aspect ratio of the window
-		GLU.gluPerspective(gl, 45.0f, (float) width / (float) height, 0.1f, 100.0f);
-		// Select the modelview matrix
-		gl.glMatrixMode(GL10.GL_MODELVIEW);
-		// Reset the modelview matrix
-		gl.glLoadIdentity();
+		// Calculate the aspect ratio of the window, the camera looks at the origin
+		Matrix.perspectiveM(this.projection, 0, FIELD_OF_VIEW, (float) width / (float) height, NEAR, FAR);
+		Matrix.setLookAtM(this.view, 0, 0f, 0f, EYE_DISTANCE, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+		this.pipeline.onSurfaceChanged(gl, width, height, this.projection, this.view);
+		this.pixelsPerUnit = height / (2f * EYE_DISTANCE * (float) Math.tan(Math.toRadians(FIELD_OF_VIEW / 2)));
 	}
 
+    /*
+     * Last rotation received, or its extrapolation to the display of the frame
+     */
+    private float[] currentRotation() {
+        float[] rotation = rotMatrix.read();
+        long timestamp = rotMatrix.getTimestamp();
+        OrientationPredictor predictor = this.predictor;
+        predictionTarget = 0;
+        if (predictor == null || timestamp == 0) {
+            return rotation;
+        }
+        if (timestamp != lastSampleTimestamp) {
+            Quaternions.fromRotationMatrix(rotation, sampleOrientation);
+            predictor.addSample(sampleOrientation, timestamp);
+        }
+        lastSampleTimestamp = timestamp;
+        long now = SystemClock.elapsedRealtimeNanos();
+        predictor.predict(now, predictedOrientation);
+        predictionTarget = now + predictor.getHorizon();
+        Quaternions.toRotationMatrix(predictedOrientation, predictedMatrix);
+        return predictedMatrix;
+    }
+
+    /*
+     * The latency is measured up to the expected display of the frame: the buffer is queued when
+     * the drawing ends, composed at the next vsync and shown PRESENT_DELAY_FRAMES later. The
+     * sensor timestamps are in the elapsedRealtimeNanos time base, the vsyncs in the nanoTime one
+     */
+    private void measureLatency() {
+        long timestamp = rotMatrix.getTimestamp();
+        if (timestamp == 0 || timestamp == lastMeasuredTimestamp) return;
+        lastMeasuredTimestamp = timestamp;
+
+        long nanoTime = System.nanoTime();
+        long now = SystemClock.elapsedRealtimeNanos();
+        long period = this.vsyncPeriodNs;
+        long vsync = this.lastVsyncNs;
+        long nextVsync = vsync == 0 || vsync > nanoTime
+                ? nanoTime + period : vsync + ((nanoTime - vsync) / period + 1) * period;
+        long present = nextVsync + PRESENT_DELAY_FRAMES * period + (now - nanoTime);
+
+        long latency = present - timestamp;
+        long residual = predictionTarget == 0 ? latency : present - predictionTarget;
+        latencyNs = latencyNs == 0 ? latency : latencyNs + Math.round(LATENCY_SMOOTHING * (latency - latencyNs));
+        residualLatencyNs = residualLatencyNs == 0
+                ? residual : residualLatencyNs + Math.round(LATENCY_SMOOTHING * (residual - residualLatencyNs));
+        if (now - lastLatencyLog >= LATENCY_LOG_PERIOD_NS) {
+            OrientationPredictor predictor = this.predictor;
+            Log.d(TAG, String.format(Locale.ROOT, "sensor to display latency %.1f ms, residual %.1f ms, %s",
+                    latencyNs / 1e6, residualLatencyNs / 1e6, predictor == null ? "not predicted"
+                            : String.format(Locale.ROOT, "predicted %.1f ms ahead", predictor.getHorizon() / 1e6)));
+            lastLatencyLog = now;
+        }
+    }
+
+    /*
+     * Coarsest level of detail whose triangles still cover a few pixels: each level has
+     * ObjLoader.LOD_REDUCTION times fewer triangles, it is used once the model is drawn at
+     * half the size of the previous level
+     */
+    private int selectLevelOfDetail(ObjLoader model) {
+        float projectedRadius = model.getRadius() * this.pixelsPerUnit;
+        int lod = 0;
+        while (lod < model.getLevelCount() - 1 && projectedRadius < FULL_DETAIL_RADIUS / (1 << lod)) {
+            ++lod;
+        }
+        return lod;
+    }
+
     /**
-     * Method used to replace the current rotation matrix with a new one
-     * @param rotMatrix The new rotationMatrix
-     * @return the old rotation matrix to be recycled
+     * Method used to replace the current rotation matrix with a new one, timestamped now
+     * @see #swapRotMatrix(float[], long)
      */
     public float[] swapRotMatrix(float[] rotMatrix) {
-        float[] tmp = this.rotMatrix;
-        this.rotMatrix = rotMatrix;
-        return tmp;
+        return swapRotMatrix(rotMatrix, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Method used to replace the current rotation matrix with a new one, a frame is requested at
+     * once if it differs from the current one: the calls are expected to be paced on the vsync,
+     * and to skip the orientations too close to the previous one to be seen, as the ones of
+     * {@link ch.heigvd.iict.sym_labo4.sensors.OrientationEngine}. The matrix is
+     * copied without locking nor allocating, the calls must all come from the same thread
+     * @param rotMatrix The new rotationMatrix
+     * @param timestampNs the time of the sensor event giving the matrix
+     *                    ({@link android.hardware.SensorEvent#timestamp})
+     * @return the given matrix, which can be reused at once
+     */
+    public float[] swapRotMatrix(float[] rotMatrix, long timestampNs) {
+        if(!this.rotMatrix.isPublished(rotMatrix)) {
+            this.rotMatrix.publish(rotMatrix, timestampNs);
+            // already in a Choreographer callback of the sensor thread
+            FramePacer pacer = this.framePacer;
+            if (pacer != null) pacer.renderNow();
+        }
+        return rotMatrix;
     }
 
 }
@@ -0,0 +1,58 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import ch.heigvd.iict.sym_labo4.gl.objects.GLStateCache;
+import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+
+/**
+ * The GL calls of {@link OpenGLRenderer} depending on the version of the context: the
+ * fixed-function pipeline of OpenGL ES 1.x or the shaders of OpenGL ES 2.0+.
+ *
+ * The camera matrices are computed by the renderer when the surface changes, each frame only
+ * multiplies the rotation of the model into them. All the methods are called on the GL thread.
+ */
+interface RenderPipeline {
+
+    /**
+     * Sets the states of a new context and creates its objects
+     * @param gl the new context
+     */
+    void onSurfaceCreated(GL10 gl);
+
+    /**
+     * @param gl the current context
+     * @param width the width of the surface
+     * @param height the height of the surface
+     * @param projection the projection matrix, column-major
+     * @param view the view matrix (camera), column-major
+     */
+    void onSurfaceChanged(GL10 gl, int width, int height, float[] projection, float[] view);
+
+    /**
+     * Uploads the buffers of a model to the current context
+     * @param gl the current context
+     * @param model the model
+     * @param state the state of the context
+     */
+    void upload(GL10 gl, ObjLoader model, GLStateCache state);
+
+    /**
+     * Clears the surface and sets the transformation of the models drawn in the frame, the
+     * following draws skip the meshes outside of the view
+     * @param gl the current context
+     * @param rotation the rotation of the model, column-major
+     * @param state the state of the context
+     */
+    void beginFrame(GL10 gl, float[] rotation, GLStateCache state);
+
+    /**
+     * Draws the visible meshes of a model uploaded with {@link #upload(GL10, ObjLoader, GLStateCache)}
+     * @param gl the current context
+     * @param model the model
+     * @param lod its level of detail
+     * @param state the state of the context
+     */
+    void draw(GL10 gl, ObjLoader model, int lod, GLStateCache state);
+
+}
@@ -0,0 +1,69 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import ch.heigvd.iict.sym_labo4.gl.objects.Frustum;
+import ch.heigvd.iict.sym_labo4.gl.objects.GLStateCache;
+import ch.heigvd.iict.sym_labo4.gl.objects.MeshProgram;
+import ch.heigvd.iict.sym_labo4.gl.objects.ObjLoader;
+
+/**
+ * OpenGL ES 2.0+ pipeline: the meshes are drawn by a {@link MeshProgram}, transformed by a
+ * single model-view-projection matrix. The view-projection product is computed when the surface
+ * changes, each frame only multiplies the rotation into it. On OpenGL ES 3.0 the meshes are
+ * drawn from vertex array objects
+ */
+class ShaderPipeline implements RenderPipeline {
+
+    private final boolean gles3;
+    private MeshProgram program = null;
+
+    private final float[] viewProjection = new float[16];
+    private final float[] mvp = new float[16];
+    private final Frustum frustum = new Frustum();
+
+    /**
+     * @param gles3 true on an OpenGL ES 3.0 context
+     */
+    ShaderPipeline(boolean gles3) {
+        this.gles3 = gles3;
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl) {
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+        GLES20.glClearDepthf(1.0f);
+        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        GLES20.glDepthFunc(GLES20.GL_LEQUAL);
+        // the program of the previous context is gone with it
+        program = new MeshProgram(gles3);
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height, float[] projection, float[] view) {
+        GLES20.glViewport(0, 0, width, height);
+        Matrix.multiplyMM(viewProjection, 0, projection, 0, view, 0);
+    }
+
+    @Override
+    public void upload(GL10 gl, ObjLoader model, GLStateCache state) {
+        model.upload(program);
+    }
+
+    @Override
+    public void beginFrame(GL10 gl, float[] rotation, GLStateCache state) {
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        Matrix.multiplyMM(mvp, 0, viewProjection, 0, rotation, 0);
+        program.use(mvp, state);
+        frustum.set(mvp);
+    }
+
+    @Override
+    public void draw(GL10 gl, ObjLoader model, int lod, GLStateCache state) {
+        model.draw(program, lod, state, frustum);
+    }
+
+}
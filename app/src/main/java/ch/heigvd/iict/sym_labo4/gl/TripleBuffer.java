@@ -0,0 +1,86 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of float arrays (e.g. matrices) and their timestamp from one writer thread
+ * to one reader thread.
+ *
+ * Three buffers rotate between the writer (back), the reader (front) and the last published one
+ * (middle), exchanged with a single atomic swap. The writer never waits and never touches the
+ * buffer being read, the reader always gets a complete array, the most recent one published.
+ * Nothing is allocated after construction.
+ */
+final class TripleBuffer {
+
+    // the state holds the index of the middle buffer, and this bit while it was not read yet
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+
+    private final float[][] buffers;
+    private final long[] timestamps = new long[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+
+    // owned by the writer
+    private int back = 0;
+    private int lastPublished = 1;
+
+    // owned by the reader
+    private int front = 2;
+
+    /**
+     * @param initial the content of the buffers before the first publication, copied
+     */
+    TripleBuffer(float[] initial) {
+        buffers = new float[3][];
+        for (int i = 0; i < 3; ++i) {
+            buffers[i] = initial.clone();
+        }
+    }
+
+    /**
+     * Publishes a copy of an array, writer thread only
+     * @param values the array to publish, can be reused once the call returns
+     * @param timestamp the time of the values, read back with {@link #getTimestamp()}
+     */
+    void publish(float[] values, long timestamp) {
+        System.arraycopy(values, 0, buffers[back], 0, buffers[back].length);
+        timestamps[back] = timestamp;
+        lastPublished = back;
+        back = middle.getAndSet(back | FRESH) & INDEX;
+    }
+
+    /**
+     * Compares an array to the last published one, writer thread only. The last published buffer
+     * is never written until the next publication
+     * @param values the array to compare
+     * @return true if the content is the same
+     */
+    boolean isPublished(float[] values) {
+        float[] last = buffers[lastPublished];
+        for (int i = 0; i < last.length; ++i) {
+            if (last[i] != values[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the most recent array, reader thread only
+     * @return the array, not modified until the next call. Must not be modified
+     */
+    float[] read() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX;
+        }
+        return buffers[front];
+    }
+
+    /**
+     * Reader thread only
+     * @return the timestamp of the array returned by the last {@link #read()}
+     */
+    long getTimestamp() {
+        return timestamps[front];
+    }
+
+}
@@ -0,0 +1,64 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+/**
+ * The six planes of the volume seen by the camera, extracted from a model-view-projection
+ * matrix: they are expressed in the coordinates of the model, its bounding volumes are tested
+ * without transforming them. Nothing is allocated after construction.
+ */
+public final class Frustum {
+
+    // a, b, c, d of each plane (left, right, bottom, top, near, far), normalized, the inside
+    // is where a * x + b * y + c * z + d >= 0
+    private final float[] planes = new float[6 * 4];
+
+    /**
+     * Extracts the planes of a transformation, to be called when it changes
+     * @param mvp the model-view-projection matrix, column-major
+     */
+    public void set(float[] mvp) {
+        for (int p = 0; p < 6; ++p) {
+            // -w <= x, y, z <= w in clip space: the plane is row 3 plus or minus row 0, 1 or 2
+            int row = p / 2;
+            float sign = p % 2 == 0 ? 1f : -1f;
+            float a = mvp[3] + sign * mvp[row];
+            float b = mvp[7] + sign * mvp[4 + row];
+            float c = mvp[11] + sign * mvp[8 + row];
+            float d = mvp[15] + sign * mvp[12 + row];
+            float length = (float) Math.sqrt(a * a + b * b + c * c);
+            planes[4 * p] = a / length;
+            planes[4 * p + 1] = b / length;
+            planes[4 * p + 2] = c / length;
+            planes[4 * p + 3] = d / length;
+        }
+    }
+
+    /**
+     * Tells if a bounding volume may be visible. The sphere is tested first, the box is only
+     * tested when the sphere crosses a plane
+     * @param box the axis-aligned box: min x, y, z then max x, y, z
+     * @param sphere the sphere enclosing the box: center x, y, z and radius
+     * @return false if the volume is entirely outside of the frustum
+     */
+    public boolean intersects(float[] box, float[] sphere) {
+        boolean crossing = false;
+        for (int p = 0; p < 24; p += 4) {
+            float distance = planes[p] * sphere[0] + planes[p + 1] * sphere[1]
+                    + planes[p + 2] * sphere[2] + planes[p + 3];
+            if (distance < -sphere[3]) return false;
+            if (distance < sphere[3]) crossing = true;
+        }
+        if (!crossing) return true;
+
+        for (int p = 0; p < 24; p += 4) {
+            // the corner of the box the farthest inside the plane
+            float x = planes[p] >= 0f ? box[3] : box[0];
+            float y = planes[p + 1] >= 0f ? box[4] : box[1];
+            float z = planes[p + 2] >= 0f ? box[5] : box[2];
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < 0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,280 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * Shadow copy of the GL state set by {@link Mesh#draw(GL10, int, GLStateCache)} and
+ * {@link Mesh#draw(MeshProgram, int, GLStateCache)}: a call setting a state to its current value
+ * is skipped. The state is left as the last mesh needed it, there is no restore after each draw.
+ *
+ * The states common to both pipelines take the fixed-function context, null on an OpenGL ES 2.0+
+ * context where the {@link GLES20} calls are used.
+ *
+ * One cache per context, used on the GL thread only. It must be told when the context is
+ * created, and invalidated whenever other code changes one of the tracked states.
+ */
+public class GLStateCache {
+
+    private static final int UNKNOWN = -1;
+
+    private int frontFace;
+    private int cullFace;
+    private int cullFaceEnabled;
+    private int vertexArrayEnabled;
+    private int colorArrayEnabled;
+    private int arrayBuffer;
+    private int elementArrayBuffer;
+    private final float[] color = new float[4];
+    private boolean colorKnown;
+
+    // OpenGL ES 2.0+ only, the color is then the constant value of the color attribute
+    private int program;
+    private int vertexArray;
+    private final int[] attribArrayEnabled = new int[2];
+
+    private RenderStats stats = null;
+
+    // capability of the context, detected once when it is created
+    private boolean bufferObjects = false;
+
+    public GLStateCache() {
+        invalidate();
+    }
+
+    /**
+     * Forgets the state and detects the capabilities of a new context
+     * @param gl the new context
+     */
+    public void onContextCreated(GL10 gl) {
+        invalidate();
+        bufferObjects = Mesh.supportsBufferObjects(gl);
+    }
+
+    /**
+     * @return true if the context supports buffer objects
+     */
+    boolean hasBufferObjects() {
+        return bufferObjects;
+    }
+
+    /**
+     * Forgets the state, the next calls are all issued
+     */
+    public void invalidate() {
+        frontFace = cullFace = UNKNOWN;
+        cullFaceEnabled = vertexArrayEnabled = colorArrayEnabled = UNKNOWN;
+        arrayBuffer = elementArrayBuffer = UNKNOWN;
+        colorKnown = false;
+        program = vertexArray = UNKNOWN;
+        attribArrayEnabled[0] = attribArrayEnabled[1] = UNKNOWN;
+    }
+
+    /**
+     * @param stats counts the issued and skipped calls, may be null
+     */
+    public void setStats(RenderStats stats) {
+        this.stats = stats;
+    }
+
+    RenderStats getStats() {
+        return stats;
+    }
+
+    void frontFace(GL10 gl, int mode) {
+        if (frontFace == mode) {
+            skipped();
+            return;
+        }
+        if (gl == null) {
+            GLES20.glFrontFace(mode);
+        } else {
+            gl.glFrontFace(mode);
+        }
+        frontFace = mode;
+        issued();
+    }
+
+    void cullFace(GL10 gl, int mode) {
+        if (cullFace == mode) {
+            skipped();
+            return;
+        }
+        if (gl == null) {
+            GLES20.glCullFace(mode);
+        } else {
+            gl.glCullFace(mode);
+        }
+        cullFace = mode;
+        issued();
+    }
+
+    void cullFaceEnabled(GL10 gl, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        if (cullFaceEnabled == value) {
+            skipped();
+            return;
+        }
+        if (gl == null) {
+            if (enabled) {
+                GLES20.glEnable(GLES20.GL_CULL_FACE);
+            } else {
+                GLES20.glDisable(GLES20.GL_CULL_FACE);
+            }
+        } else if (enabled) {
+            gl.glEnable(GL10.GL_CULL_FACE);
+        } else {
+            gl.glDisable(GL10.GL_CULL_FACE);
+        }
+        cullFaceEnabled = value;
+        issued();
+    }
+
+    /**
+     * @param array GL_VERTEX_ARRAY or GL_COLOR_ARRAY
+     */
+    void clientState(GL10 gl, int array, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        int current = array == GL10.GL_VERTEX_ARRAY ? vertexArrayEnabled : colorArrayEnabled;
+        if (current == value) {
+            skipped();
+            return;
+        }
+        if (enabled) {
+            gl.glEnableClientState(array);
+        } else {
+            gl.glDisableClientState(array);
+        }
+        if (array == GL10.GL_VERTEX_ARRAY) {
+            vertexArrayEnabled = value;
+        } else {
+            colorArrayEnabled = value;
+        }
+        issued();
+    }
+
+    void bindArrayBuffer(GL10 gl, int id) {
+        if (arrayBuffer == id) {
+            skipped();
+            return;
+        }
+        // nothing can be bound on an OpenGL ES 1.0 context without buffer objects
+        if (gl == null) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, id);
+            issued();
+        } else if (bufferObjects) {
+            ((GL11) gl).glBindBuffer(GL11.GL_ARRAY_BUFFER, id);
+            issued();
+        }
+        arrayBuffer = id;
+    }
+
+    void bindElementArrayBuffer(GL10 gl, int id) {
+        if (elementArrayBuffer == id) {
+            skipped();
+            return;
+        }
+        if (gl == null) {
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, id);
+            issued();
+        } else if (bufferObjects) {
+            ((GL11) gl).glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, id);
+            issued();
+        }
+        elementArrayBuffer = id;
+    }
+
+    void color(GL10 gl, float[] rgba) {
+        if (colorKnown && color[0] == rgba[0] && color[1] == rgba[1]
+                && color[2] == rgba[2] && color[3] == rgba[3]) {
+            skipped();
+            return;
+        }
+        gl.glColor4f(rgba[0], rgba[1], rgba[2], rgba[3]);
+        System.arraycopy(rgba, 0, color, 0, 4);
+        colorKnown = true;
+        issued();
+    }
+
+    void useProgram(int id) {
+        if (program == id) {
+            skipped();
+            return;
+        }
+        GLES20.glUseProgram(id);
+        program = id;
+        issued();
+    }
+
+    /*
+     * OpenGL ES 3.0 only. The element array binding and the enabled attribute arrays are
+     * stored in the vertex array object, they are unknown once another one is bound
+     */
+    void bindVertexArray(int id) {
+        if (vertexArray == id) {
+            skipped();
+            return;
+        }
+        GLES30.glBindVertexArray(id);
+        vertexArray = id;
+        elementArrayBuffer = UNKNOWN;
+        attribArrayEnabled[0] = attribArrayEnabled[1] = UNKNOWN;
+        issued();
+    }
+
+    /**
+     * @param index MeshProgram.POSITION or MeshProgram.COLOR
+     */
+    void vertexAttribArray(int index, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        if (attribArrayEnabled[index] == value) {
+            skipped();
+            return;
+        }
+        if (enabled) {
+            GLES20.glEnableVertexAttribArray(index);
+        } else {
+            GLES20.glDisableVertexAttribArray(index);
+        }
+        attribArrayEnabled[index] = value;
+        issued();
+    }
+
+    /*
+     * Constant value of the color attribute while its array is disabled, not changed by the
+     * draws
+     */
+    void colorAttrib(float[] rgba) {
+        if (colorKnown && color[0] == rgba[0] && color[1] == rgba[1]
+                && color[2] == rgba[2] && color[3] == rgba[3]) {
+            skipped();
+            return;
+        }
+        GLES20.glVertexAttrib4fv(MeshProgram.COLOR, rgba, 0);
+        System.arraycopy(rgba, 0, color, 0, 4);
+        colorKnown = true;
+        issued();
+    }
+
+    /*
+     * The current color is undefined after a draw using the color array
+     */
+    void invalidateColor() {
+        colorKnown = false;
+    }
+
+    /*
+     * Counts a call that is always issued (pointers, draws)
+     */
+    void issued() {
+        if (stats != null) stats.addGlCall();
+    }
+
+    private void skipped() {
+        if (stats != null) stats.addSkippedGlCall();
+    }
+
+}
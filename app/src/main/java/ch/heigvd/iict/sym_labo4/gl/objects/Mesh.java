@@ -1,57 +1,319 @@
 package ch.heigvd.iict.sym_labo4.gl.objects;
 
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
 
 public class Mesh {
-	// Our vertex buffer.
-	private FloatBuffer verticesBuffer = null;
+	// Size of a position (3 floats) and of a packed RGBA8 color.
+	static final int POSITION_SIZE = 3 * 4;
+	static final int COLOR_SIZE = 4;
+
+	// Largest vertex count addressable with GL_UNSIGNED_SHORT indices.
+	static final int MAX_SHORT_INDEXED_VERTICES = 65536;
+
+	// Not part of GL10, available with the OES_element_index_uint extension.
+	static final int GL_UNSIGNED_INT = 0x1405;
+	private static final String UINT_INDEX_EXTENSION = "GL_OES_element_index_uint";
+
+	// Version of the OpenGL ES 1.x contexts, "OpenGL ES-CM 1.0" or "OpenGL ES-CL 1.1" (common
+	// or common-lite profile), followed by a vendor specific part.
+	private static final String ES1_VERSION_PREFIX = "OpenGL ES-C";
+	private static final String BUFFER_OBJECT_EXTENSION = "vertex_buffer_object";
+
+	// Our vertex buffer, either positions only or interleaved positions and colors.
+	private ByteBuffer verticesBuffer = null;
+
+	// View of the vertex buffer starting at the first color, null without vertex colors.
+	private ByteBuffer colorsBuffer = null;
+
+	// Distance in bytes between two vertices.
+	private int stride = POSITION_SIZE;
+
+	// True if each vertex carries its own color (interleaved layout).
+	private boolean vertexColors = false;
 
-	// Our index buffer.
-	private ShortBuffer indicesBuffer = null;
+	// Our index buffers, one per level of detail (0 is the full resolution), all sharing the
+	// vertex buffer. 16 bits (ShortBuffer) or 32 bits (IntBuffer) indices.
+	private Buffer[] indicesBuffers = new Buffer[0];
 
-	// The number of indices.
-	private int numOfIndices = -1;
+	// GL_UNSIGNED_SHORT or GL_UNSIGNED_INT.
+	private int indexType = GL10.GL_UNSIGNED_SHORT;
+
+	// The number of indices of each level.
+	private int[] numOfIndices = new int[0];
 
 	// Flat Color
 	private float[] rgba = new float[] { 1.0f, 1.0f, 1.0f, 1.0f };
 
-	// Smooth Colors
-	private FloatBuffer colorBuffer = null;
+	// Bounding volumes of the vertices, computed from them when not given: the axis-aligned box
+	// (min x, y, z, max x, y, z) and the sphere enclosing it (center x, y, z, radius)
+	private float[] box = null;
+	private float[] sphere = null;
+
+	// GPU side copies of the buffers (0 when not uploaded): the vertices then the indices of
+	// each level
+	private int[] bufferIds = new int[1];
+	private static final int VERTICES = 0, INDICES = 1;
+
+	// OpenGL ES 3.0 vertex array objects (0 when not created), one per level of detail as
+	// they record the index buffer
+	private int[] vertexArrayIds = new int[0];
+
+	// State of the context the mesh was uploaded to, used by the draws not given one.
+	private GLStateCache uploadState = null;
+
+	public Mesh() {
+	}
+
+	/*
+	 * Shares the CPU side buffers of another mesh, the buffer objects are not shared: each
+	 * mesh uploads its own copy in the context drawing it
+	 */
+	Mesh(Mesh other) {
+		verticesBuffer = other.verticesBuffer;
+		colorsBuffer = other.colorsBuffer;
+		stride = other.stride;
+		vertexColors = other.vertexColors;
+		indicesBuffers = other.indicesBuffers.clone();
+		indexType = other.indexType;
+		numOfIndices = other.numOfIndices.clone();
+		rgba = other.rgba.clone();
+		box = other.box;
+		sphere = other.sphere;
+		bufferIds = new int[1 + indicesBuffers.length];
+		vertexArrayIds = new int[indicesBuffers.length];
+	}
+
+	/**
+	 * Uploads the vertices and indices into buffer objects, the next draws will use
+	 * them instead of the client side buffers. Must be called on the GL thread, each time a new
+	 * context is created (the buffer objects of a lost context are gone with it).
+	 * Does nothing on OpenGL ES 1.0 contexts without buffer objects.
+	 * @param gl the current GL context
+	 * @param state the state of the context, created with {@link GLStateCache#onContextCreated(GL10)}
+	 */
+	public void upload(GL10 gl, GLStateCache state) {
+		uploadState = state;
+		// the GL10 of Android always implements GL11, whatever the version of the context
+		if (!state.hasBufferObjects()) {
+			Arrays.fill(bufferIds, 0);
+			return;
+		}
+		GL11 gl11 = (GL11) gl;
+		gl11.glGenBuffers(bufferIds.length, bufferIds, 0);
+
+		gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, bufferIds[VERTICES]);
+		gl11.glBufferData(GL11.GL_ARRAY_BUFFER, verticesBuffer.capacity(),
+				verticesBuffer, GL11.GL_STATIC_DRAW);
+		gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+
+		for (int lod = 0; lod < indicesBuffers.length; ++lod) {
+			gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, bufferIds[INDICES + lod]);
+			gl11.glBufferData(GL11.GL_ELEMENT_ARRAY_BUFFER, indicesBuffers[lod].capacity() * getIndexSize(),
+					indicesBuffers[lod], GL11.GL_STATIC_DRAW);
+		}
+		gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Uploads the vertices and indices into buffer objects of an OpenGL ES 2.0+ context, with
+	 * a vertex array object per level of detail on OpenGL ES 3.0. Must be called on the GL
+	 * thread before drawing with the program, each time a new context is created.
+	 * Leaves no buffer nor vertex array bound.
+	 * @param program the program of the current context
+	 */
+	public void upload(MeshProgram program) {
+		GLES20.glGenBuffers(bufferIds.length, bufferIds, 0);
+
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferIds[VERTICES]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, verticesBuffer.capacity(),
+				verticesBuffer, GLES20.GL_STATIC_DRAW);
+
+		for (int lod = 0; lod < indicesBuffers.length; ++lod) {
+			GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferIds[INDICES + lod]);
+			GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indicesBuffers[lod].capacity() * getIndexSize(),
+					indicesBuffers[lod], GLES20.GL_STATIC_DRAW);
+		}
+		GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+		if (!program.hasVertexArrays()) {
+			Arrays.fill(vertexArrayIds, 0);
+			GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+			return;
+		}
+		// the pointers, enabled arrays and index buffer are recorded once, a draw only binds
+		// the vertex array
+		GLES30.glGenVertexArrays(vertexArrayIds.length, vertexArrayIds, 0);
+		for (int lod = 0; lod < vertexArrayIds.length; ++lod) {
+			GLES30.glBindVertexArray(vertexArrayIds[lod]);
+			setAttribPointers();
+			GLES20.glEnableVertexAttribArray(MeshProgram.POSITION);
+			if (vertexColors) {
+				GLES20.glEnableVertexAttribArray(MeshProgram.COLOR);
+			}
+			GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufferIds[INDICES + lod]);
+		}
+		GLES30.glBindVertexArray(0);
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+	}
+
+	/*
+	 * The vertex buffer must be bound
+	 */
+	private void setAttribPointers() {
+		GLES20.glVertexAttribPointer(MeshProgram.POSITION, 3, GLES20.GL_FLOAT, false, stride, 0);
+		if (vertexColors) {
+			GLES20.glVertexAttribPointer(MeshProgram.COLOR, 4, GLES20.GL_UNSIGNED_BYTE, true, stride, POSITION_SIZE);
+		}
+	}
 
 	public void draw(GL10 gl) {
+		draw(gl, 0);
+	}
+
+	/*
+	 * With the state of the context the mesh was uploaded to, or a state of its own if it was
+	 * not, created once
+	 */
+	public void draw(GL10 gl, int lod) {
+		if (uploadState == null) {
+			uploadState = new GLStateCache();
+			uploadState.onContextCreated(gl);
+		}
+		draw(gl, lod, uploadState);
+	}
+
+	/**
+	 * Draws a level of detail of the mesh. The states already set (e.g. by the previous mesh)
+	 * are skipped, the states are left as this mesh needs them
+	 * @param gl the current GL context
+	 * @param lod the level, 0 for the full resolution. Clamped to the coarsest level available
+	 * @param state the state of the context, its stats count the draw calls and triangles
+	 */
+	public void draw(GL10 gl, int lod, GLStateCache state) {
+		lod = Math.min(lod, indicesBuffers.length - 1);
+		RenderStats stats = state.getStats();
+		if (stats != null) {
+			stats.addDraw(numOfIndices[lod]);
+		}
 		// Counter-clockwise winding.
-		gl.glFrontFace(GL10.GL_CCW);
+		state.frontFace(gl, GL10.GL_CCW);
 		// Enable face culling.
-		gl.glEnable(GL10.GL_CULL_FACE);
+		state.cullFaceEnabled(gl, true);
 		// What faces to remove with the face culling.
-		gl.glCullFace(GL10.GL_BACK);
+		state.cullFace(gl, GL10.GL_BACK);
 		// Enabled the vertices buffer for writing and to be used during
 		// rendering.
-		gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
-		// Specifies the location and data format of an array of vertex
-		// coordinates to use when rendering.
-		gl.glVertexPointer(3, GL10.GL_FLOAT, 0, verticesBuffer);
-		// Set flat color
-		gl.glColor4f(rgba[0], rgba[1], rgba[2], rgba[3]);
-		// Smooth color
-		if (colorBuffer != null) {
-			// Enable the color array buffer to be used during rendering.
-			gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
-			gl.glColorPointer(4, GL10.GL_FLOAT, 0, colorBuffer);
-		}
-
-		// Point out the where the color buffer is.
-		gl.glDrawElements(GL10.GL_TRIANGLES, numOfIndices,
-				GL10.GL_UNSIGNED_SHORT, indicesBuffer);
-		// Disable the vertices buffer.
-		gl.glDisableClientState(GL10.GL_VERTEX_ARRAY);
-		// Disable face culling.
-		gl.glDisable(GL10.GL_CULL_FACE);
+		state.clientState(gl, GL10.GL_VERTEX_ARRAY, true);
+		// Set flat color, the color array is only used with the interleaved layout
+		state.clientState(gl, GL10.GL_COLOR_ARRAY, vertexColors);
+		if (!vertexColors) {
+			state.color(gl, rgba);
+		}
+
+		if (bufferIds[VERTICES] != 0) {
+			// draw from the buffer objects, the pointers are offsets in the bound buffers
+			GL11 gl11 = (GL11) gl;
+			state.bindArrayBuffer(gl, bufferIds[VERTICES]);
+			gl11.glVertexPointer(3, GL10.GL_FLOAT, stride, 0);
+			state.issued();
+			if (vertexColors) {
+				gl11.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, stride, POSITION_SIZE);
+				state.issued();
+			}
+			state.bindElementArrayBuffer(gl, bufferIds[INDICES + lod]);
+			gl11.glDrawElements(GL10.GL_TRIANGLES, numOfIndices[lod], indexType, 0);
+			state.issued();
+		} else {
+			// the pointers must not be read as offsets in a buffer object
+			state.bindArrayBuffer(gl, 0);
+			state.bindElementArrayBuffer(gl, 0);
+			// Specifies the location and data format of an array of vertex
+			// coordinates to use when rendering.
+			gl.glVertexPointer(3, GL10.GL_FLOAT, stride, verticesBuffer);
+			state.issued();
+			if (vertexColors) {
+				// the colors follow each position in the same buffer
+				gl.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, stride, colorsBuffer);
+				state.issued();
+			}
+
+			// Point out the where the color buffer is.
+			gl.glDrawElements(GL10.GL_TRIANGLES, numOfIndices[lod],
+					indexType, indicesBuffers[lod]);
+			state.issued();
+		}
+		if (vertexColors) {
+			state.invalidateColor();
+		}
+	}
+
+	/**
+	 * Draws a level of detail of the mesh on an OpenGL ES 2.0+ context, the mesh must be
+	 * uploaded with {@link #upload(MeshProgram)} and the program in use
+	 * @param program the program of the current context
+	 * @param lod the level, 0 for the full resolution. Clamped to the coarsest level available
+	 * @param state the state of the context, its stats count the draw calls and triangles
+	 */
+	public void draw(MeshProgram program, int lod, GLStateCache state) {
+		lod = Math.min(lod, indicesBuffers.length - 1);
+		RenderStats stats = state.getStats();
+		if (stats != null) {
+			stats.addDraw(numOfIndices[lod]);
+		}
+		state.frontFace(null, GLES20.GL_CCW);
+		state.cullFaceEnabled(null, true);
+		state.cullFace(null, GLES20.GL_BACK);
+
+		if (program.hasVertexArrays()) {
+			state.bindVertexArray(vertexArrayIds[lod]);
+		} else {
+			state.bindArrayBuffer(null, bufferIds[VERTICES]);
+			setAttribPointers();
+			state.issued();
+			if (vertexColors) {
+				state.issued();
+			}
+			state.vertexAttribArray(MeshProgram.POSITION, true);
+			state.vertexAttribArray(MeshProgram.COLOR, vertexColors);
+			state.bindElementArrayBuffer(null, bufferIds[INDICES + lod]);
+		}
+		if (!vertexColors) {
+			state.colorAttrib(rgba);
+		}
+		GLES20.glDrawElements(GLES20.GL_TRIANGLES, numOfIndices[lod], indexType, 0);
+		state.issued();
+	}
+
+	/**
+	 * @param frustum the volume seen by the camera, in the coordinates of the mesh
+	 * @return false if no vertex of the mesh can be visible
+	 */
+	public boolean isVisible(Frustum frustum) {
+		return frustum.intersects(getBoundingBox(), getBoundingSphere());
+	}
+
+	/*
+	 * Orders the meshes by the states they set, consecutive meshes then share most of them
+	 */
+	static int compareState(Mesh a, Mesh b) {
+		if (a.vertexColors != b.vertexColors) return a.vertexColors ? 1 : -1;
+		if (a.indexType != b.indexType) return a.indexType < b.indexType ? -1 : 1;
+		for (int i = 0; i < 4; ++i) {
+			int c = Float.compare(a.rgba[i], b.rgba[i]);
+			if (c != 0) return c;
+		}
+		return 0;
 	}
 
     protected void setVertices(float[] vertices) {
@@ -59,9 +321,36 @@ public class Mesh {
 		// vertices with 4.
 		ByteBuffer vbb = ByteBuffer.allocateDirect(vertices.length * 4);
 		vbb.order(ByteOrder.nativeOrder());
-		verticesBuffer = vbb.asFloatBuffer();
-		verticesBuffer.put(vertices);
-		verticesBuffer.position(0);
+		vbb.asFloatBuffer().put(vertices);
+		verticesBuffer = vbb;
+		colorsBuffer = null;
+		stride = POSITION_SIZE;
+		vertexColors = false;
+	}
+
+	/*
+	 * Interleaved layout: each position (3 floats) is followed by its color packed as 4
+	 * normalized unsigned bytes, 16 bytes per vertex instead of 28 with separate float arrays
+	 * @param vertices the x,y,z coordinates
+	 * @param colors the r,g,b,a components in [0,1], 4 per vertex
+	 */
+	protected void setVertices(float[] vertices, float[] colors) {
+		int count = vertices.length / 3;
+		ByteBuffer vbb = ByteBuffer.allocateDirect(count * (POSITION_SIZE + COLOR_SIZE));
+		vbb.order(ByteOrder.nativeOrder());
+		for (int i = 0; i < count; ++i) {
+			vbb.putFloat(vertices[3 * i]);
+			vbb.putFloat(vertices[3 * i + 1]);
+			vbb.putFloat(vertices[3 * i + 2]);
+			for (int c = 0; c < 4; ++c) {
+				vbb.put(toUnsignedByte(colors[4 * i + c]));
+			}
+		}
+		vbb.position(0);
+		verticesBuffer = vbb;
+		colorsBuffer = colorView(vbb);
+		stride = POSITION_SIZE + COLOR_SIZE;
+		vertexColors = true;
 	}
 
     protected void setIndices(short[] indices) {
@@ -69,10 +358,23 @@ public class Mesh {
 		// vertices with 2.
 		ByteBuffer ibb = ByteBuffer.allocateDirect(indices.length * 2);
 		ibb.order(ByteOrder.nativeOrder());
-		indicesBuffer = ibb.asShortBuffer();
-		indicesBuffer.put(indices);
-		indicesBuffer.position(0);
-		numOfIndices = indices.length;
+		ShortBuffer sb = ibb.asShortBuffer();
+		sb.put(indices);
+		sb.position(0);
+		setIndices(sb);
+	}
+
+	/*
+	 * 32 bits indices, only drawable when the OES_element_index_uint extension is present
+	 */
+	protected void setIndices(int[] indices) {
+		// int is 4 bytes
+		ByteBuffer ibb = ByteBuffer.allocateDirect(indices.length * 4);
+		ibb.order(ByteOrder.nativeOrder());
+		IntBuffer ib = ibb.asIntBuffer();
+		ib.put(indices);
+		ib.position(0);
+		setIndices(ib);
 	}
 
 	protected void setColor(float red, float green, float blue, float alpha) {
@@ -83,12 +385,230 @@ public class Mesh {
 		rgba[3] = alpha;
 	}
 
-    protected void setColors(float[] colors) {
-		// float has 4 bytes.
-		ByteBuffer cbb = ByteBuffer.allocateDirect(colors.length * 4);
-		cbb.order(ByteOrder.nativeOrder());
-		colorBuffer = cbb.asFloatBuffer();
-		colorBuffer.put(colors);
-		colorBuffer.position(0);
+	protected void setVertices(ByteBuffer vertices, boolean vertexColors) {
+		// the buffer must be a direct buffer in native order
+		verticesBuffer = vertices;
+		colorsBuffer = vertexColors ? colorView(vertices) : null;
+		this.vertexColors = vertexColors;
+		stride = vertexColors ? POSITION_SIZE + COLOR_SIZE : POSITION_SIZE;
+	}
+
+	/*
+	 * The client side color pointer, made once instead of at each draw
+	 */
+	private static ByteBuffer colorView(ByteBuffer vertices) {
+		ByteBuffer colors = vertices.duplicate();
+		colors.position(POSITION_SIZE);
+		return colors;
+	}
+
+	protected void setIndices(ShortBuffer indices) {
+		// the buffer must be a direct buffer in native order
+		indexType = GL10.GL_UNSIGNED_SHORT;
+		setLevels(indices);
+	}
+
+	protected void setIndices(IntBuffer indices) {
+		// the buffer must be a direct buffer in native order
+		indexType = GL_UNSIGNED_INT;
+		setLevels(indices);
+	}
+
+	private void setLevels(Buffer indices) {
+		indicesBuffers = new Buffer[] { indices };
+		numOfIndices = new int[] { indices.remaining() };
+		bufferIds = new int[2];
+		vertexArrayIds = new int[1];
+	}
+
+	/*
+	 * Appends a coarser level of detail, referencing the same vertices. The indices are stored
+	 * with the type of the full resolution ones
+	 */
+	void addLevelOfDetail(int[] indices) {
+		ByteBuffer ibb = ByteBuffer.allocateDirect(indices.length * getIndexSize());
+		ibb.order(ByteOrder.nativeOrder());
+		if (indexType == GL_UNSIGNED_INT) {
+			IntBuffer ib = ibb.asIntBuffer();
+			ib.put(indices);
+			ib.position(0);
+			addLevelOfDetail(ib);
+		} else {
+			ShortBuffer sb = ibb.asShortBuffer();
+			for (int index : indices) {
+				sb.put((short) index);
+			}
+			sb.position(0);
+			addLevelOfDetail(sb);
+		}
+	}
+
+	/*
+	 * The buffer must be a direct buffer in native order, of the type of the full resolution
+	 * indices
+	 */
+	void addLevelOfDetail(Buffer indices) {
+		int levels = indicesBuffers.length;
+		indicesBuffers = Arrays.copyOf(indicesBuffers, levels + 1);
+		indicesBuffers[levels] = indices;
+		numOfIndices = Arrays.copyOf(numOfIndices, levels + 1);
+		numOfIndices[levels] = indices.remaining();
+		bufferIds = new int[2 + levels];
+		vertexArrayIds = new int[1 + levels];
+	}
+
+	ByteBuffer getVertices() {
+		return verticesBuffer;
+	}
+
+	Buffer getIndices() {
+		return getIndices(0);
+	}
+
+	Buffer getIndices(int lod) {
+		return indicesBuffers[lod];
+	}
+
+	int getIndexCount() {
+		return getIndexCount(0);
+	}
+
+	int getIndexCount(int lod) {
+		return numOfIndices[lod];
+	}
+
+	/**
+	 * @return the number of levels of detail, at least 1
+	 */
+	public int getLevelCount() {
+		return indicesBuffers.length;
+	}
+
+	boolean hasUintIndices() {
+		return indexType == GL_UNSIGNED_INT;
+	}
+
+	int getIndexSize() {
+		return indexType == GL_UNSIGNED_INT ? 4 : 2;
+	}
+
+	/**
+	 * Tells if 32 bits indices can be drawn (OES_element_index_uint extension)
+	 * @param gl the current GL context
+	 * @return true if meshes with more than 65536 vertices can be drawn in a single call
+	 */
+	public static boolean supportsUintIndices(GL10 gl) {
+		String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+		return extensions != null && extensions.contains(UINT_INDEX_EXTENSION);
+	}
+
+	/**
+	 * Tells if buffer objects can be used, they are part of OpenGL ES 1.1 ("OpenGL ES-CM 1.1"
+	 * version) and of OpenGL ES 2.0+, an extension of OpenGL ES 1.0
+	 * @param gl the current GL context
+	 * @return true if the meshes can be uploaded to the GPU
+	 */
+	public static boolean supportsBufferObjects(GL10 gl) {
+		String version = gl.glGetString(GL10.GL_VERSION);
+		if (version == null) return false;
+		if (!version.startsWith(ES1_VERSION_PREFIX) || !version.regionMatches(ES1_VERSION_PREFIX.length() + 2, "1.0", 0, 3)) {
+			return true;
+		}
+		String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+		return extensions != null && extensions.contains(BUFFER_OBJECT_EXTENSION);
+	}
+
+	/**
+	 * Same as {@link #supportsUintIndices(GL10)} for an OpenGL ES 2.0+ context, the 32 bits
+	 * indices are part of OpenGL ES 3.0
+	 * @param program the program of the current context
+	 * @return true if meshes with more than 65536 vertices can be drawn in a single call
+	 */
+	public static boolean supportsUintIndices(MeshProgram program) {
+		if (program.hasVertexArrays()) return true;
+		String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+		return extensions != null && extensions.contains(UINT_INDEX_EXTENSION);
+	}
+
+	boolean hasVertexColors() {
+		return vertexColors;
+	}
+
+	float[] getColor() {
+		return rgba;
+	}
+
+	/*
+	 * Memory used by the CPU side buffers
+	 */
+	int getByteSize() {
+		int size = verticesBuffer.capacity();
+		for (Buffer indices : indicesBuffers) {
+			size += getIndexSize() * indices.capacity();
+		}
+		return size;
+	}
+
+	int getVertexCount() {
+		return verticesBuffer.capacity() / stride;
+	}
+
+	/*
+	 * Sets the bounding box computed while building the vertices, it must enclose them all.
+	 * The bounding sphere is derived from it
+	 */
+	void setBoundingBox(float[] box) {
+		this.box = box;
+		float[] half = new float[3];
+		for (int i = 0; i < 3; ++i) {
+			half[i] = (box[3 + i] - box[i]) / 2f;
+		}
+		sphere = new float[] { box[0] + half[0], box[1] + half[1], box[2] + half[2],
+				(float) Math.sqrt(half[0] * half[0] + half[1] * half[1] + half[2] * half[2]) };
+	}
+
+	/*
+	 * Min x, y, z then max x, y, z of the vertices
+	 */
+	float[] getBoundingBox() {
+		if (box == null) {
+			float[] b = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+					-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+			for (int offset = 0; offset < verticesBuffer.capacity(); offset += stride) {
+				for (int i = 0; i < 3; ++i) {
+					float c = verticesBuffer.getFloat(offset + 4 * i);
+					b[i] = Math.min(b[i], c);
+					b[3 + i] = Math.max(b[3 + i], c);
+				}
+			}
+			setBoundingBox(b);
+		}
+		return box;
+	}
+
+	/*
+	 * Center x, y, z and radius of a sphere enclosing the vertices
+	 */
+	float[] getBoundingSphere() {
+		getBoundingBox();
+		return sphere;
+	}
+
+	/*
+	 * Distance from the origin to the farthest vertex
+	 */
+	float getRadius() {
+		float max = 0f;
+		for (int offset = 0; offset < verticesBuffer.capacity(); offset += stride) {
+			float x = verticesBuffer.getFloat(offset);
+			float y = verticesBuffer.getFloat(offset + 4);
+			float z = verticesBuffer.getFloat(offset + 8);
+			max = Math.max(max, x * x + y * y + z * z);
+		}
+		return (float) Math.sqrt(max);
+	}
+
+	private static byte toUnsignedByte(float component) {
+		return (byte) Math.round(Math.max(0f, Math.min(1f, component)) * 255f);
 	}
 }
@@ -0,0 +1,407 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Precompiled binary version of the .obj models found in the assets.
+ *
+ * The first time a model is requested, it is parsed by {@link ObjLoader} and the resulting
+ * (recentered) meshes are written to the cache directory. The next loads map that file in
+ * memory and wrap its sections directly as the direct buffers used by {@link Mesh}: nothing is
+ * parsed nor copied. The file name contains the fingerprint of the options and a CRC32 of the
+ * asset, a modified model therefore gets a new cache file and the stale ones of the same options
+ * are removed. The asset is not read again to validate a cache file: its length and the last
+ * update of the app are stored in the file, the asset is only hashed again after an update.
+ *
+ * File layout, all values are in the native byte order of the device:
+ * <pre>
+ *   int magic, int version, long assetLength, long installTime, int meshCount
+ *   meshCount * { int flags, int vertexBytes, float[4] color, float[6] box, int levelCount, int[levelCount] indexCount }
+ *   meshCount * { byte[vertexBytes], levelCount * (short[indexCount] (padded to 4 bytes) or int[indexCount]) }
+ * </pre>
+ * The vertex bytes are the positions, interleaved with RGBA8 colors when the
+ * {@link #FLAG_VERTEX_COLORS} flag is set. The indices are 32 bits when the
+ * {@link #FLAG_UINT_INDICES} flag is set. Each level of detail has its own indices. The box is
+ * the bounding box of the vertices (min x, y, z then max x, y, z).
+ */
+public final class MeshCache {
+
+    private static final String TAG = MeshCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x53594D4D; // "SYMM"
+    private static final int VERSION = 6;
+    private static final int FLAG_VERTEX_COLORS = 1;
+    private static final int FLAG_UINT_INDICES = 2;
+    // asset length and install time, after the magic and the version
+    private static final int STAMP_OFFSET = 8;
+    private static final int STAMP_SIZE = 16;
+    private static final int HEADER_SIZE = STAMP_OFFSET + STAMP_SIZE + 4;
+    // table entry of a mesh without its index counts
+    private static final int TABLE_ENTRY_SIZE = 13 * 4;
+    private static final String EXTENSION = ".mesh";
+
+    private MeshCache() {}
+
+    /**
+     * Receives the progression of a load, called on the loading thread
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesRead the number of bytes of the asset parsed so far
+         * @param totalBytes the size of the asset, or -1 if unknown
+         */
+        void onProgress(long bytesRead, long totalBytes);
+    }
+
+    /**
+     * Loads a model from the assets with the default options, through its binary cache
+     * @see #load(Context, String, ObjLoader.Options)
+     */
+    public static ObjLoader load(Context ctx, String assetName) throws IOException {
+        return load(ctx, assetName, new ObjLoader.Options());
+    }
+
+    /**
+     * Loads a model from the assets, through its binary cache when it is up to date
+     * @param ctx the context used to reach the assets and the cache directory
+     * @param assetName the name of the .obj asset
+     * @param options the options used to build the meshes, they are part of the cache key
+     * @return the loaded model
+     * @throws IOException if the asset cannot be read
+     */
+    public static ObjLoader load(Context ctx, String assetName, ObjLoader.Options options) throws IOException {
+        return load(ctx, assetName, options, null);
+    }
+
+    /**
+     * Loads a model from the assets, through its binary cache when it is up to date
+     * @param ctx the context used to reach the assets and the cache directory
+     * @param assetName the name of the .obj asset
+     * @param options the options used to build the meshes, they are part of the cache key
+     * @param listener notified while the asset is parsed (the cache is mapped at once), may be null
+     * @return the loaded model
+     * @throws IOException if the asset cannot be read
+     */
+    public static ObjLoader load(Context ctx, String assetName, ObjLoader.Options options,
+                                 ProgressListener listener) throws IOException {
+        File dir = ctx.getCacheDir();
+        String prefix = String.format(Locale.ROOT, "%s.%02x.", assetName, options.fingerprint());
+        long assetLength = assetLength(ctx, assetName);
+        long installTime = installTime(ctx);
+
+        File cacheFile = find(dir, prefix);
+        if (cacheFile != null) {
+            try {
+                if (isCurrent(ctx, assetName, cacheFile, prefix, assetLength, installTime)) {
+                    ObjLoader model = new ObjLoader(map(cacheFile));
+                    if (listener != null) listener.onProgress(cacheFile.length(), cacheFile.length());
+                    return model;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Invalid mesh cache " + cacheFile + ", rebuilding it", e);
+            }
+        }
+
+        // the asset is hashed while it is parsed, it is read once
+        CRC32 crc = new CRC32();
+        ObjLoader model;
+        try (InputStream in = new CheckedInputStream(ctx.getAssets().open(assetName), crc)) {
+            model = new ObjLoader(listener == null ? in : new ProgressInputStream(in, listener), options);
+        }
+        cacheFile = new File(dir, String.format(Locale.ROOT, "%s%08x%s", prefix, crc.getValue(), EXTENSION));
+        try {
+            write(cacheFile, model.getMeshes(), assetLength, installTime);
+        } catch (IOException e) {
+            // the cache is only an optimisation
+            Log.w(TAG, "Cannot write mesh cache " + cacheFile, e);
+        }
+        deleteStale(dir, prefix, cacheFile);
+        return model;
+    }
+
+    /*
+     * A cache file is current when the asset has the length it had when the file was written and
+     * the app was not updated since. After an update, the asset is hashed once: if it did not
+     * change, the stamp of the file is refreshed
+     */
+    private static boolean isCurrent(Context ctx, String assetName, File cacheFile, String prefix,
+                                     long assetLength, long installTime) throws IOException {
+        ByteBuffer stamp = ByteBuffer.allocate(STAMP_SIZE).order(ByteOrder.nativeOrder());
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r")) {
+            raf.getChannel().read(stamp, STAMP_OFFSET);
+        }
+        if (stamp.position() < STAMP_SIZE || stamp.getLong(0) != assetLength) return false;
+        if (stamp.getLong(8) == installTime) return true;
+
+        String name = String.format(Locale.ROOT, "%s%08x%s", prefix, hashAsset(ctx, assetName), EXTENSION);
+        if (!name.equals(cacheFile.getName())) return false;
+        stamp.clear();
+        stamp.putLong(assetLength).putLong(installTime).flip();
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.getChannel().write(stamp, STAMP_OFFSET);
+        }
+        return true;
+    }
+
+    private static long hashAsset(Context ctx, String assetName) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = ctx.getAssets().open(assetName)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /*
+     * The asset streams know the size of the (uncompressed) asset without reading it
+     */
+    private static long assetLength(Context ctx, String assetName) throws IOException {
+        try (InputStream in = ctx.getAssets().open(assetName)) {
+            return in.available();
+        }
+    }
+
+    /*
+     * The assets only change when the app is installed or updated
+     */
+    private static long installTime(Context ctx) {
+        try {
+            return ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    /*
+     * Returns the most recent cache file of an asset built with some options
+     */
+    private static File find(File dir, String prefix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(EXTENSION));
+        if (files == null) return null;
+        File latest = null;
+        for (File f : files) {
+            if (latest == null || f.lastModified() > latest.lastModified()) latest = f;
+        }
+        return latest;
+    }
+
+    /*
+     * Deletes the previous cache files of an asset built with the same options, the files of
+     * the other options stay valid
+     */
+    private static void deleteStale(File dir, String prefix, File current) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(EXTENSION)
+                && !name.equals(current.getName()));
+        if (files == null) return;
+        for (File f : files) {
+            if (!f.delete()) {
+                Log.w(TAG, "Cannot delete stale mesh cache " + f);
+            }
+        }
+    }
+
+    static void write(File file, List<Mesh> meshes, long assetLength, long installTime) throws IOException {
+        int size = HEADER_SIZE + TABLE_ENTRY_SIZE * meshes.size();
+        for (Mesh m : meshes) {
+            size += m.getVertices().capacity();
+            for (int lod = 0; lod < m.getLevelCount(); ++lod) {
+                size += 4 + align(m.getIndexSize() * m.getIndexCount(lod));
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        out.putInt(MAGIC).putInt(VERSION).putLong(assetLength).putLong(installTime).putInt(meshes.size());
+        for (Mesh m : meshes) {
+            out.putInt((m.hasVertexColors() ? FLAG_VERTEX_COLORS : 0)
+                    | (m.hasUintIndices() ? FLAG_UINT_INDICES : 0));
+            out.putInt(m.getVertices().capacity());
+            for (float c : m.getColor()) {
+                out.putFloat(c);
+            }
+            for (float c : m.getBoundingBox()) {
+                out.putFloat(c);
+            }
+            out.putInt(m.getLevelCount());
+            for (int lod = 0; lod < m.getLevelCount(); ++lod) {
+                out.putInt(m.getIndexCount(lod));
+            }
+        }
+        for (Mesh m : meshes) {
+            ByteBuffer vertices = m.getVertices().duplicate();
+            vertices.clear();
+            out.put(vertices);
+            for (int lod = 0; lod < m.getLevelCount(); ++lod) {
+                if (m.hasUintIndices()) {
+                    out.asIntBuffer().put(((IntBuffer) m.getIndices(lod)).duplicate());
+                } else {
+                    out.asShortBuffer().put(((ShortBuffer) m.getIndices(lod)).duplicate());
+                }
+                out.position(out.position() + align(m.getIndexSize() * m.getIndexCount(lod)));
+            }
+        }
+        out.flip();
+
+        // written next to the final file and renamed, a partial file is never visible
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            FileChannel channel = fos.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    static List<Mesh> map(File file) throws IOException {
+        MappedByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid once the channel is closed
+            data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        data.order(ByteOrder.nativeOrder());
+
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC || data.getInt() != VERSION) {
+            throw new IOException("Not a mesh cache file (version " + VERSION + ")");
+        }
+        // the stamp is checked before mapping
+        data.position(STAMP_OFFSET + STAMP_SIZE);
+        int count = data.getInt();
+        if (count < 0 || data.remaining() < (long) TABLE_ENTRY_SIZE * count) {
+            throw new IOException("Corrupted mesh cache file");
+        }
+
+        // the table has variable size entries, it is read before the sections it describes
+        int[] flags = new int[count], vertexBytes = new int[count];
+        int[][] indexCounts = new int[count][];
+        List<Mesh> meshes = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            flags[i] = data.getInt();
+            vertexBytes[i] = data.getInt();
+            Mesh m = new Mesh();
+            m.setColor(data.getFloat(), data.getFloat(), data.getFloat(), data.getFloat());
+            float[] box = new float[6];
+            for (int c = 0; c < 6; ++c) {
+                box[c] = data.getFloat();
+            }
+            m.setBoundingBox(box);
+            int levels = data.getInt();
+            if (levels < 1 || data.remaining() < 4L * levels + (long) TABLE_ENTRY_SIZE * (count - i - 1)) {
+                throw new IOException("Corrupted mesh cache file");
+            }
+            indexCounts[i] = new int[levels];
+            for (int lod = 0; lod < levels; ++lod) {
+                indexCounts[i][lod] = data.getInt();
+            }
+            meshes.add(m);
+        }
+
+        int offset = data.position();
+        for (int i = 0; i < count; ++i) {
+            Mesh m = meshes.get(i);
+            m.setVertices(section(data, offset, vertexBytes[i]), (flags[i] & FLAG_VERTEX_COLORS) != 0);
+            offset += vertexBytes[i];
+            for (int lod = 0; lod < indexCounts[i].length; ++lod) {
+                int indexCount = indexCounts[i][lod];
+                Buffer indices;
+                if ((flags[i] & FLAG_UINT_INDICES) != 0) {
+                    indices = section(data, offset, 4 * indexCount).asIntBuffer();
+                    offset += 4 * indexCount;
+                } else {
+                    indices = section(data, offset, 2 * indexCount).asShortBuffer();
+                    offset += align(2 * indexCount);
+                }
+                if (lod == 0 && indices instanceof IntBuffer) {
+                    m.setIndices((IntBuffer) indices);
+                } else if (lod == 0) {
+                    m.setIndices((ShortBuffer) indices);
+                } else {
+                    m.addLevelOfDetail(indices);
+                }
+            }
+        }
+        return meshes;
+    }
+
+    /*
+     * Returns a view on a part of the mapped file, sharing its memory
+     */
+    private static ByteBuffer section(ByteBuffer data, int offset, int length) throws IOException {
+        if (length < 0 || offset + length > data.capacity()) {
+            throw new IOException("Corrupted mesh cache file");
+        }
+        ByteBuffer dup = data.duplicate();
+        dup.limit(offset + length).position(offset);
+        // slice() resets the byte order
+        return dup.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /*
+     * Counts the bytes read from an asset stream
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+
+        private final ProgressListener listener;
+        private final long total;
+        private long read = 0;
+
+        ProgressInputStream(InputStream in, ProgressListener listener) throws IOException {
+            super(in);
+            this.listener = listener;
+            // the asset streams know the remaining size of the (uncompressed) asset
+            int available = in.available();
+            this.total = available > 0 ? available : -1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) progress(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) progress(n);
+            return n;
+        }
+
+        private void progress(int n) {
+            read += n;
+            listener.onProgress(read, total);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+}
@@ -0,0 +1,102 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Shader program drawing the meshes on an OpenGL ES 2.0+ context: the positions are transformed
+ * by a single model-view-projection matrix, the fragments take the color of the vertex (or the
+ * flat color of the mesh). Same result as the fixed-function pipeline without lighting.
+ *
+ * Must be created on the GL thread, and re-created with each context.
+ */
+public class MeshProgram {
+
+    private static final String TAG = MeshProgram.class.getSimpleName();
+
+    // attribute locations, bound before linking
+    static final int POSITION = 0;
+    static final int COLOR = 1;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uMvp;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aColor;\n"
+            + "varying vec4 vColor;\n"
+            + "void main() {\n"
+            + "    gl_Position = uMvp * aPosition;\n"
+            + "    vColor = aColor;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+            + "varying vec4 vColor;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = vColor;\n"
+            + "}\n";
+
+    private final boolean vertexArrays;
+    private final int program;
+    private final int mvpLocation;
+
+    /**
+     * Compiles and links the program
+     * @param vertexArrays true on an OpenGL ES 3.0 context, the meshes then record their
+     *                     attribute bindings in vertex array objects
+     * @throws IllegalStateException if the program does not compile or link
+     */
+    public MeshProgram(boolean vertexArrays) {
+        this.vertexArrays = vertexArrays;
+        int vertexShader = compile(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compile(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glBindAttribLocation(program, POSITION, "aPosition");
+        GLES20.glBindAttribLocation(program, COLOR, "aColor");
+        GLES20.glLinkProgram(program);
+        // flagged for deletion, freed with the program
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("Cannot link the mesh program: " + log);
+        }
+        mvpLocation = GLES20.glGetUniformLocation(program, "uMvp");
+    }
+
+    private static int compile(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            Log.e(TAG, "Shader compilation failed:\n" + source);
+            throw new IllegalStateException("Cannot compile the mesh shader: " + log);
+        }
+        return shader;
+    }
+
+    /**
+     * Makes the program current and sets the transformation of the next draws
+     * @param mvp the model-view-projection matrix, column-major
+     * @param state the state of the context, skips the program switch when already current
+     */
+    public void use(float[] mvp, GLStateCache state) {
+        state.useProgram(program);
+        GLES20.glUniformMatrix4fv(mvpLocation, 1, false, mvp, 0);
+        state.issued();
+    }
+
+    boolean hasVertexArrays() {
+        return vertexArrays;
+    }
+
+}
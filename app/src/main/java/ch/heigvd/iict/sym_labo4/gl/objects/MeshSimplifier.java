@@ -0,0 +1,358 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import java.util.Arrays;
+
+/**
+ * Decimation of indexed triangles by quadric error edge collapse (Garland and Heckbert,
+ * "Surface Simplification Using Quadric Error Metrics", 1997), used to build the levels of detail
+ * of the meshes.
+ *
+ * An edge is always collapsed onto one of its two vertices: the simplified triangles reference
+ * the original vertices and a level of detail only needs its own index buffer. Collapses that
+ * would flip a triangle are rejected and open borders are preserved by extra constraint planes.
+ */
+final class MeshSimplifier {
+
+    // weight of the planes keeping the borders of open meshes in place
+    private static final double BORDER_WEIGHT = 100.0;
+
+    // quadric coefficients: aa, ab, ac, ad, bb, bc, bd, cc, cd, dd
+    private static final int Q = 10;
+
+    private MeshSimplifier() {}
+
+    /**
+     * Simplifies triangles
+     * @param vertices the x,y,z coordinates of the vertices
+     * @param indices the triangles, not modified
+     * @param targetTriangles the wanted number of triangles
+     * @return the triangles of the simplified mesh, referencing the same vertices. The target
+     *         is not reached when no more edge can be collapsed without flipping a triangle
+     */
+    static int[] simplify(float[] vertices, int[] indices, int targetTriangles) {
+        int vertexCount = vertices.length / 3;
+        int triangleCount = indices.length / 3;
+        if (triangleCount <= targetTriangles) return indices.clone();
+
+        double[] quadrics = new double[Q * vertexCount];
+        for (int t = 0; t < triangleCount; ++t) {
+            addFaceQuadric(vertices, indices, t, quadrics);
+        }
+
+        // unique edges, a key is (min << 32 | max)
+        long[] keys = new long[indices.length];
+        for (int t = 0; t < triangleCount; ++t) {
+            for (int j = 0; j < 3; ++j) {
+                keys[3 * t + j] = edgeKey(indices[3 * t + j], indices[3 * t + (j + 1) % 3]);
+            }
+        }
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int edgeCount = 0;
+        int[] edgeUse = new int[sorted.length];
+        for (int i = 0; i < sorted.length; ++i) {
+            if (edgeCount > 0 && sorted[edgeCount - 1] == sorted[i]) {
+                ++edgeUse[edgeCount - 1];
+            } else {
+                sorted[edgeCount] = sorted[i];
+                edgeUse[edgeCount++] = 1;
+            }
+        }
+
+        // edges used by a single triangle are borders
+        for (int t = 0; t < triangleCount; ++t) {
+            for (int j = 0; j < 3; ++j) {
+                int e = Arrays.binarySearch(sorted, 0, edgeCount, keys[3 * t + j]);
+                if (edgeUse[e] == 1) {
+                    addBorderQuadric(vertices, indices, t, j, quadrics);
+                }
+            }
+        }
+
+        // vertex -> triangles adjacency, in compressed rows
+        int[] offsets = new int[vertexCount + 1];
+        for (int index : indices) {
+            ++offsets[index + 1];
+        }
+        for (int v = 0; v < vertexCount; ++v) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] adjacency = new int[indices.length];
+        int[] fill = Arrays.copyOf(offsets, vertexCount);
+        for (int i = 0; i < indices.length; ++i) {
+            adjacency[fill[indices[i]]++] = i / 3;
+        }
+
+        // collapsed vertices: union-find towards the surviving vertex, plus circular lists of
+        // the vertices merged together to reach their triangles
+        int[] parent = new int[vertexCount];
+        int[] next = new int[vertexCount];
+        int[] version = new int[vertexCount];
+        for (int v = 0; v < vertexCount; ++v) {
+            parent[v] = v;
+            next[v] = v;
+        }
+        boolean[] removed = new boolean[triangleCount];
+        int liveTriangles = triangleCount;
+
+        Heap heap = new Heap(edgeCount);
+        for (int e = 0; e < edgeCount; ++e) {
+            int a = (int) (sorted[e] >>> 32), b = (int) sorted[e];
+            heap.push(e, collapseCost(vertices, quadrics, a, b), 0);
+        }
+
+        while (liveTriangles > targetTriangles && heap.size > 0) {
+            int e = heap.topEdge();
+            int stamp = heap.topStamp();
+            heap.pop();
+
+            int a = find(parent, (int) (sorted[e] >>> 32));
+            int b = find(parent, (int) sorted[e]);
+            if (a == b) continue;
+            if (stamp != version[a] + version[b]) {
+                // an end has changed since the cost was computed
+                heap.push(e, collapseCost(vertices, quadrics, a, b), version[a] + version[b]);
+                continue;
+            }
+
+            // collapse onto the end giving the smallest error
+            int from = a, to = b;
+            if (error(quadrics, a, b, vertices, a) < error(quadrics, a, b, vertices, b)) {
+                from = b;
+                to = a;
+            }
+            if (flips(vertices, indices, adjacency, offsets, parent, next, removed, from, to)) {
+                continue;
+            }
+
+            // triangles using both ends disappear
+            int v = from;
+            do {
+                for (int k = offsets[v]; k < offsets[v + 1]; ++k) {
+                    int t = adjacency[k];
+                    if (removed[t]) continue;
+                    for (int j = 0; j < 3; ++j) {
+                        if (find(parent, indices[3 * t + j]) == to) {
+                            removed[t] = true;
+                            --liveTriangles;
+                            break;
+                        }
+                    }
+                }
+                v = next[v];
+            } while (v != from);
+
+            parent[from] = to;
+            int tmp = next[from];
+            next[from] = next[to];
+            next[to] = tmp;
+            for (int i = 0; i < Q; ++i) {
+                quadrics[Q * to + i] += quadrics[Q * from + i];
+            }
+            ++version[to];
+        }
+
+        int[] result = new int[3 * liveTriangles];
+        int n = 0;
+        for (int t = 0; t < triangleCount; ++t) {
+            if (removed[t]) continue;
+            for (int j = 0; j < 3; ++j) {
+                result[n++] = find(parent, indices[3 * t + j]);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Tells if moving the vertices merged in "from" to the position of "to" turns over one of
+     * their remaining triangles
+     */
+    private static boolean flips(float[] vertices, int[] indices, int[] adjacency, int[] offsets,
+                                 int[] parent, int[] next, boolean[] removed, int from, int to) {
+        int v = from;
+        do {
+            for (int k = offsets[v]; k < offsets[v + 1]; ++k) {
+                int t = adjacency[k];
+                if (removed[t]) continue;
+                int p0 = find(parent, indices[3 * t]);
+                int p1 = find(parent, indices[3 * t + 1]);
+                int p2 = find(parent, indices[3 * t + 2]);
+                if (p0 == to || p1 == to || p2 == to) continue; // removed by the collapse
+                double[] before = normal(vertices, p0, p1, p2);
+                double[] after = normal(vertices, p0 == from ? to : p0, p1 == from ? to : p1, p2 == from ? to : p2);
+                if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+                    return true;
+                }
+            }
+            v = next[v];
+        } while (v != from);
+        return false;
+    }
+
+    private static float collapseCost(float[] vertices, double[] quadrics, int a, int b) {
+        return (float) Math.min(error(quadrics, a, b, vertices, a), error(quadrics, a, b, vertices, b));
+    }
+
+    /*
+     * Error of the merged quadric of a and b at the position of vertex p
+     */
+    private static double error(double[] quadrics, int a, int b, float[] vertices, int p) {
+        double x = vertices[3 * p], y = vertices[3 * p + 1], z = vertices[3 * p + 2];
+        double[] q = quadrics;
+        int i = Q * a, j = Q * b;
+        double e = (q[i] + q[j]) * x * x
+                + 2 * (q[i + 1] + q[j + 1]) * x * y
+                + 2 * (q[i + 2] + q[j + 2]) * x * z
+                + 2 * (q[i + 3] + q[j + 3]) * x
+                + (q[i + 4] + q[j + 4]) * y * y
+                + 2 * (q[i + 5] + q[j + 5]) * y * z
+                + 2 * (q[i + 6] + q[j + 6]) * y
+                + (q[i + 7] + q[j + 7]) * z * z
+                + 2 * (q[i + 8] + q[j + 8]) * z
+                + (q[i + 9] + q[j + 9]);
+        return Math.max(e, 0);
+    }
+
+    private static void addFaceQuadric(float[] vertices, int[] indices, int t, double[] quadrics) {
+        int p0 = indices[3 * t], p1 = indices[3 * t + 1], p2 = indices[3 * t + 2];
+        double[] n = normal(vertices, p0, p1, p2);
+        double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (length == 0) return;
+        // weighted by the area of the triangle
+        double area = length / 2;
+        double a = n[0] / length, b = n[1] / length, c = n[2] / length;
+        double d = -(a * vertices[3 * p0] + b * vertices[3 * p0 + 1] + c * vertices[3 * p0 + 2]);
+        addPlane(quadrics, p0, a, b, c, d, area);
+        addPlane(quadrics, p1, a, b, c, d, area);
+        addPlane(quadrics, p2, a, b, c, d, area);
+    }
+
+    /*
+     * Plane containing the border edge j of triangle t and perpendicular to the triangle
+     */
+    private static void addBorderQuadric(float[] vertices, int[] indices, int t, int j, double[] quadrics) {
+        int p0 = indices[3 * t + j], p1 = indices[3 * t + (j + 1) % 3];
+        double[] n = normal(vertices, indices[3 * t], indices[3 * t + 1], indices[3 * t + 2]);
+        double ex = vertices[3 * p1] - vertices[3 * p0];
+        double ey = vertices[3 * p1 + 1] - vertices[3 * p0 + 1];
+        double ez = vertices[3 * p1 + 2] - vertices[3 * p0 + 2];
+        double a = ey * n[2] - ez * n[1];
+        double b = ez * n[0] - ex * n[2];
+        double c = ex * n[1] - ey * n[0];
+        double length = Math.sqrt(a * a + b * b + c * c);
+        if (length == 0) return;
+        a /= length;
+        b /= length;
+        c /= length;
+        double d = -(a * vertices[3 * p0] + b * vertices[3 * p0 + 1] + c * vertices[3 * p0 + 2]);
+        double weight = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+        addPlane(quadrics, p0, a, b, c, d, weight);
+        addPlane(quadrics, p1, a, b, c, d, weight);
+    }
+
+    private static void addPlane(double[] q, int v, double a, double b, double c, double d, double w) {
+        int i = Q * v;
+        q[i] += w * a * a;
+        q[i + 1] += w * a * b;
+        q[i + 2] += w * a * c;
+        q[i + 3] += w * a * d;
+        q[i + 4] += w * b * b;
+        q[i + 5] += w * b * c;
+        q[i + 6] += w * b * d;
+        q[i + 7] += w * c * c;
+        q[i + 8] += w * c * d;
+        q[i + 9] += w * d * d;
+    }
+
+    /*
+     * Non normalized normal of a triangle (twice its area)
+     */
+    private static double[] normal(float[] vertices, int p0, int p1, int p2) {
+        double ux = vertices[3 * p1] - vertices[3 * p0];
+        double uy = vertices[3 * p1 + 1] - vertices[3 * p0 + 1];
+        double uz = vertices[3 * p1 + 2] - vertices[3 * p0 + 2];
+        double vx = vertices[3 * p2] - vertices[3 * p0];
+        double vy = vertices[3 * p2 + 1] - vertices[3 * p0 + 1];
+        double vz = vertices[3 * p2 + 2] - vertices[3 * p0 + 2];
+        return new double[] { uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx };
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /*
+     * Binary min-heap of edges ordered by collapse cost
+     */
+    private static class Heap {
+        float[] costs;
+        int[] edges;
+        int[] stamps;
+        int size = 0;
+
+        Heap(int capacity) {
+            costs = new float[Math.max(capacity, 1)];
+            edges = new int[costs.length];
+            stamps = new int[costs.length];
+        }
+
+        void push(int edge, float cost, int stamp) {
+            if (size == costs.length) {
+                costs = Arrays.copyOf(costs, 2 * size);
+                edges = Arrays.copyOf(edges, 2 * size);
+                stamps = Arrays.copyOf(stamps, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int p = (i - 1) / 2;
+                if (costs[p] <= cost) break;
+                set(i, p);
+                i = p;
+            }
+            costs[i] = cost;
+            edges[i] = edge;
+            stamps[i] = stamp;
+        }
+
+        int topEdge() {
+            return edges[0];
+        }
+
+        int topStamp() {
+            return stamps[0];
+        }
+
+        void pop() {
+            --size;
+            if (size == 0) return;
+            float cost = costs[size];
+            int edge = edges[size], stamp = stamps[size];
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) break;
+                if (c + 1 < size && costs[c + 1] < costs[c]) ++c;
+                if (cost <= costs[c]) break;
+                set(i, c);
+                i = c;
+            }
+            costs[i] = cost;
+            edges[i] = edge;
+            stamps[i] = stamp;
+        }
+
+        private void set(int i, int from) {
+            costs[i] = costs[from];
+            edges[i] = edges[from];
+            stamps[i] = stamps[from];
+        }
+    }
+}
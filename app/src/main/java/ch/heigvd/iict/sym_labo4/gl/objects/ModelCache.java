@@ -0,0 +1,79 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Process wide cache of the loaded models, shared by all the renderers.
+ *
+ * The cache keeps the CPU side buffers of the meshes (see {@link MeshCache}), each renderer
+ * gets its own {@link ObjLoader} sharing these buffers: re-creating an activity only costs the
+ * upload of the model to the GPU. The least recently used models are evicted once the cached
+ * buffers exceed a byte budget.
+ */
+public final class ModelCache {
+
+    private static final String TAG = ModelCache.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final LruCache<String, ObjLoader> CACHE = new LruCache<String, ObjLoader>(DEFAULT_MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, ObjLoader model) {
+            return model.getByteSize();
+        }
+    };
+
+    private ModelCache() {}
+
+    /**
+     * Returns a model from the cache, loading it on a miss
+     * @param ctx the context used to reach the assets
+     * @param assetName the name of the .obj asset
+     * @param options the options used to build the meshes, they are part of the key
+     * @param listener notified while the asset is loaded, may be null
+     * @return a model sharing the cached buffers, its meshes are not uploaded yet
+     * @throws IOException if the asset cannot be read
+     */
+    public static ObjLoader get(Context ctx, String assetName, ObjLoader.Options options,
+                                MeshCache.ProgressListener listener) throws IOException {
+        String key = assetName + "#" + options.fingerprint();
+        ObjLoader model = CACHE.get(key);
+        if (model == null) {
+            model = MeshCache.load(ctx, assetName, options, listener);
+            CACHE.put(key, model);
+        } else if (listener != null) {
+            listener.onProgress(1, 1);
+        }
+        Log.d(TAG, getStats());
+        return model.share();
+    }
+
+    /**
+     * Changes the byte budget of the cache, the least recently used models are evicted if needed
+     * @param maxBytes the maximal size of the cached buffers
+     */
+    public static void setMaxBytes(int maxBytes) {
+        CACHE.resize(maxBytes);
+    }
+
+    /**
+     * Removes all the models, the renderers still using one keep it alive
+     */
+    public static void clear() {
+        CACHE.evictAll();
+    }
+
+    /**
+     * @return the usage of the cache: size, hits, misses and evictions
+     */
+    public static String getStats() {
+        return String.format(Locale.ROOT, "%d/%d bytes, %d hits, %d misses, %d evictions",
+                CACHE.size(), CACHE.maxSize(), CACHE.hitCount(), CACHE.missCount(), CACHE.evictionCount());
+    }
+
+}
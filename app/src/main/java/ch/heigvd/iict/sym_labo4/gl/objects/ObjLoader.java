@@ -2,14 +2,19 @@ package ch.heigvd.iict.sym_labo4.gl.objects;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -17,153 +22,594 @@ public class ObjLoader{
 
     private static final String TAG = ObjLoader.class.getSimpleName();
 
+    public static final int MAX_LEVELS_OF_DETAIL = 3;
+    // triangle ratio between two levels, a level is drawn at half the size of the previous one
+    public static final int LOD_REDUCTION = 4;
+
 	private List<Mesh> meshes = new LinkedList<>();
     private List<Material> materials = new LinkedList<>();
 
+	// distance from the center to the farthest vertex, computed on first use
+	private float radius = -1f;
+
+	// state of the context the meshes were last uploaded to, used by the draws not given one
+	private GLStateCache uploadState = null;
+
+    /**
+     * Options changing how the meshes are built
+     */
+    public static class Options {
+
+        private boolean vertexColors = false;
+        private boolean uintIndices = false;
+        private boolean optimize = false;
+        private int parallelism = 1;
+        private int levelsOfDetail = 1;
+        private boolean staticBatch = false;
+
+        /**
+         * @param vertexColors true to store the color of each vertex in the vertex buffer
+         *                     (interleaved positions and RGBA8 colors), false to draw each
+         *                     group with its flat material color (default)
+         * @return this
+         */
+        public Options setVertexColors(boolean vertexColors) {
+            this.vertexColors = vertexColors;
+            return this;
+        }
+
+        /**
+         * @param uintIndices true to keep groups of more than 65536 vertices in a single mesh
+         *                    with 32 bits indices, only when {@link Mesh#supportsUintIndices(GL10)}
+         *                    is true for the context drawing the model. False to split them in
+         *                    several meshes with 16 bits indices (default)
+         * @return this
+         */
+        public Options setUintIndices(boolean uintIndices) {
+            this.uintIndices = uintIndices;
+            return this;
+        }
+
+        /**
+         * @param optimize true to weld duplicated vertices, remove unused ones and reorder the
+         *                 triangles for the GPU vertex cache, see {@link MeshOptimizer}
+         * @return this
+         */
+        public Options setOptimize(boolean optimize) {
+            this.optimize = optimize;
+            return this;
+        }
+
+        /**
+         * @param parallelism the number of threads parsing and converting the groups of the
+         *                    model, bounded by the number of cores. 1 to load the model on the
+         *                    calling thread only (default). The result does not depend on it
+         * @return this
+         */
+        public Options setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param levelsOfDetail the number of index buffers of each mesh, from 1 (full
+         *                       resolution only, default) to
+         *                       {@link ObjLoader#MAX_LEVELS_OF_DETAIL}. Each level has about
+         *                       {@link ObjLoader#LOD_REDUCTION} times fewer triangles than the
+         *                       previous one, see {@link MeshSimplifier}
+         * @return this
+         */
+        public Options setLevelsOfDetail(int levelsOfDetail) {
+            this.levelsOfDetail = Math.max(1, Math.min(levelsOfDetail, MAX_LEVELS_OF_DETAIL));
+            return this;
+        }
+
+        /**
+         * @param staticBatch true to merge the groups into as few meshes as possible, each
+         *                    drawn with a single call. The colors are stored per vertex (implies
+         *                    {@link #setVertexColors(boolean)}), the meshes are only split when
+         *                    they would exceed the 16 bits index range, unless
+         *                    {@link #setUintIndices(boolean)} is set. False to keep one mesh per
+         *                    group (default)
+         * @return this
+         */
+        public Options setStaticBatch(boolean staticBatch) {
+            this.staticBatch = staticBatch;
+            return this;
+        }
+
+        /*
+         * Identifies the options changing the built meshes, used as a cache key
+         */
+        int fingerprint() {
+            return (vertexColors ? 1 : 0) | (uintIndices ? 2 : 0) | (optimize ? 4 : 0) | (levelsOfDetail - 1) << 3
+                    | (staticBatch ? 32 : 0);
+        }
+    }
+
 	public ObjLoader(InputStream inModel) {
+		this(inModel, new Options());
+	}
 
-        List<String> vertices = new ArrayList<>();
-        List<String> faces = new ArrayList<>();
-		Material currentMaterial = null;
-		
-		List<PriorMesh> pMeshes = new LinkedList<>();
+	public ObjLoader(InputStream inModel, Options options) {
+
+		long start = System.nanoTime();
+		int parallelism = Math.min(options.parallelism, Runtime.getRuntime().availableProcessors());
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
 
 		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(inModel));
+			List<PriorMesh> pMeshes = pool == null ? parse(inModel) : parseParallel(inModel, pool);
 
-			String line = in.readLine();
+			//re-center of the object, partial sums per group reduced in group order,
+			//the result is the same in sequential and parallel modes
+			List<double[]> sums = forEach(pMeshes, pool, PriorMesh::sum);
+			double totX = 0, totY = 0, totZ = 0;
+			long nbr = 0;
+			for(double[] sum: sums){
+				totX += sum[0];
+				totY += sum[1];
+				totZ += sum[2];
+				nbr += (long)sum[3];
+			}
+			float mX = (float)(totX / nbr);
+			float mY = (float)(totY / nbr);
+			float mZ = (float)(totZ / nbr);
 
-			while(line != null){
-				if(line.startsWith("v ")){
-					vertices.add(line.substring(2));
+			List<List<PriorMesh>> prepared = forEach(pMeshes, pool, pm -> {
+				pm.recenter(mX, mY, mZ);
+				if(options.optimize){
+					pm.optimize();
 				}
-				else if(line.startsWith("f ")){
-					faces.add(line.substring(2));
+				if(options.uintIndices || pm.getVertexCount() <= Mesh.MAX_SHORT_INDEXED_VERTICES){
+					return Collections.singletonList(pm);
 				}
-				else if(line.startsWith("g ")){
-					//next line contains the material to use
-					List<String> v = null, f = null;
-
-					if(vertices.size() > 0 && faces.size() > 0 && currentMaterial != null){
-						v = vertices;
-						f = faces;
-						pMeshes.add(createMesh(v, f, currentMaterial));
-						vertices = new ArrayList<>();
-						faces = new ArrayList<>();
-					}
+				//too many vertices for 16 bits indices
+				return pm.split(Mesh.MAX_SHORT_INDEXED_VERTICES);
+			});
+			List<PriorMesh> parts = new LinkedList<>();
+			for(List<PriorMesh> groupParts: prepared){
+				parts.addAll(groupParts);
+			}
+			if(options.staticBatch){
+				int groups = parts.size();
+				parts = batch(parts, options.uintIndices ? Integer.MAX_VALUE : Mesh.MAX_SHORT_INDEXED_VERTICES);
+				Log.d(TAG, String.format(Locale.ROOT, "static batch: %d groups merged into %d meshes",
+						groups, parts.size()));
+			}
 
-					line = in.readLine();
-                    currentMaterial = null;
-					String matName = line.split(" ")[1];
-					for(Material m: this.materials){
-						if(m.getName().equalsIgnoreCase(matName)){
-							currentMaterial = m;
-							break;
-						}
-					}
-					if(currentMaterial == null){
-						currentMaterial = getRandomMaterial();
-					}
-				}
+			meshes.addAll(forEach(parts, pool, pm -> buildMesh(pm, options)));
+			sortByState();
 
-				line = in.readLine();
-			}
-			pMeshes.add(createMesh(vertices, faces, currentMaterial));
-
-			//re-center of the object
-			int nbr = 0, totX = 0, totY = 0, totZ = 0;
-			for(PriorMesh pm: pMeshes){
-				float[] coord = pm.getVertices();
-				for(int i = 0; i < coord.length; ++i){
-					if(i%3 == 0){
-						totX += coord[i];
-						nbr += 1;
-					}
-					else if(i%3 == 1){
-						totY += coord[i];
-					}
-					else if(i%3 == 2){
-						totZ += coord[i];
-					}
-				}
+		} catch (IOException e) {
+            Log.w(TAG, "Exception while reading .obj file", e);
+        } finally {
+			if(pool != null){
+				pool.shutdown();
 			}
-			float mX = (float)((double)(totX) / (double)(nbr));
-			float mY = (float)((double)(totY) / (double)(nbr));
-			float mZ = (float)((double)(totZ) / (double)(nbr));
+		}
 
-			for(PriorMesh pm: pMeshes){
-				Mesh m = new Mesh();
-				pm.recenter(mX, mY, mZ);
-				m.setVertices(pm.getVertices());
-				m.setIndices(pm.getIndices());
-				m.setColors(pm.getColors());
+        Log.d(TAG, String.format(Locale.ROOT, "loaded in %.1f ms with %d thread(s)",
+                (System.nanoTime() - start) / 1e6, Math.max(parallelism, 1)));
+        Log.d(TAG, getMemoryReport());
+	}
 
-				meshes.add(m);
+	private List<PriorMesh> parse(InputStream inModel) throws IOException {
+		List<PriorMesh> pMeshes = new LinkedList<>();
+		new ObjParser(inModel).parse((vertices, vertexCount, faces, indexCount, matName) ->
+				pMeshes.add(createMesh(vertices, vertexCount, faces, indexCount, findMaterial(matName))));
+		return pMeshes;
+	}
+
+	/*
+	 * The model is read in memory and split at its group statements, the groups are then
+	 * parsed concurrently
+	 */
+	private List<PriorMesh> parseParallel(InputStream inModel, ForkJoinPool pool) throws IOException {
+		byte[] data = new byte[64 * 1024];
+		int length = 0, n;
+		while((n = inModel.read(data, length, data.length - length)) != -1){
+			length += n;
+			if(length == data.length){
+				data = Arrays.copyOf(data, 2 * data.length);
 			}
+		}
 
-		} catch (IOException e) {
-            Log.w(TAG, "Exception while reading .obj file", e);
-        }
+		int[] parts = ObjParser.splitGroups(data, length);
+		List<int[]> ranges = new ArrayList<>(parts.length / 2);
+		for(int i = 0; i < parts.length; i += 2){
+			int end = i + 2 < parts.length ? parts[i + 2] : length;
+			ranges.add(new int[] { parts[i], end - parts[i], parts[i + 1] });
+		}
+
+		final byte[] content = data;
+		List<List<PriorMesh>> parsed = forEach(ranges, pool, range -> {
+			List<PriorMesh> pMeshes = new LinkedList<>();
+			new ObjParser(content, range[0], range[1], range[2]).parse((vertices, vertexCount, faces, indexCount, matName) ->
+					pMeshes.add(createMesh(vertices, vertexCount, faces, indexCount, findMaterial(matName))));
+			return pMeshes;
+		});
+		List<PriorMesh> pMeshes = new LinkedList<>();
+		for(List<PriorMesh> part: parsed){
+			pMeshes.addAll(part);
+		}
+		return pMeshes;
+	}
+
+	private interface Step<T, R> {
+		R apply(T item) throws IOException;
+	}
+
+	/*
+	 * Applies a step to every item, on the pool when there is one, and returns the results
+	 * in the order of the items
+	 */
+	private static <T, R> List<R> forEach(List<T> items, ForkJoinPool pool, Step<T, R> step) throws IOException {
+		List<R> results = new ArrayList<>(items.size());
+		if(pool == null){
+			for(T item: items){
+				results.add(step.apply(item));
+			}
+			return results;
+		}
+		List<Future<R>> futures = new ArrayList<>(items.size());
+		for(T item: items){
+			futures.add(pool.submit(() -> step.apply(item)));
+		}
+		try {
+			for(Future<R> f: futures){
+				results.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading the model");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		return results;
+	}
 
+	private Material findMaterial(String matName){
+		if(matName != null){
+			for(Material m: this.materials){
+				if(m.getName().equalsIgnoreCase(matName)){
+					return m;
+				}
+			}
+		}
+		return getRandomMaterial();
 	}
 	
-	private PriorMesh createMesh(List<String> vertices, List<String> faces, Material mat){
+	/*
+	 * Builds the mesh of a group from the arrays filled by the parser, the arrays are
+	 * reused by the parser and are therefore copied
+	 */
+	private PriorMesh createMesh(float[] vertices, int vertexCount, int[] faces, int indexCount, Material mat){
 		
 		PriorMesh tmpMesh = new PriorMesh();
 		
-		float[] vert = new float[3 * vertices.size()];
-		short[] ind  = new short[3 * faces.size()];
-		float[] colors = new float[4 * vertices.size()];
-		
-		for(int i = 0; i < vertices.size(); ++i){
-			String[] coord = vertices.get(i).split(" ");
-			vert[3*i + 0] = Float.parseFloat(coord[0]);
-			vert[3*i + 1] = Float.parseFloat(coord[1]);
-			vert[3*i + 2] = Float.parseFloat(coord[2]);
-		}
-		
-		for(int i = 0; i < faces.size(); ++i){
-			String[] coord = faces.get(i).split(" ");
-			for(int j = 0; j < 3; ++j){
-				String[] parts = coord[j].split("/");
-				ind[3*i + j] = (short)(Short.parseShort(parts[0]) - 1);
-			}
-		}
+		float[] vert = Arrays.copyOf(vertices, 3 * vertexCount);
+		int[] ind  = new int[indexCount];
 		
 		//correction of the indices
-		short min = Short.MAX_VALUE;
-		for(int i = 0; i < ind.length; ++i){
-			if(ind[i] < min){
-				min = ind[i];
+		int min = Integer.MAX_VALUE;
+		for(int i = 0; i < indexCount; ++i){
+			if(faces[i] < min){
+				min = faces[i];
 			}
 		}
-		for(int i = 0; i < ind.length; ++i){
-			ind[i] -= min;
+		for(int i = 0; i < indexCount; ++i){
+			ind[i] = faces[i] - min;
 		}
 		
 		//TODO use a real material
 		float[] color = mat.getKd();
 		
-		for(int i = 0; i < colors.length; ++i){
-			if(i%4 == 3){
-				colors[i] = 1.0f;
-			}
-			else{
-				colors[i] = color[i%4];
-			}
-		}
-		
-		tmpMesh.setColors(colors);
+		tmpMesh.setColor(new float[] { color[0], color[1], color[2], 1.0f });
 		tmpMesh.setVertices(vert);
 		tmpMesh.setIndices(ind);
 		
 		return tmpMesh;
 	}
 
+	/*
+	 * Merges consecutive groups while the merged vertices fit in maxVertices, each group keeps
+	 * its color in its vertices. Groups are never cut, a group alone above the limit was
+	 * already split
+	 */
+	private static List<PriorMesh> batch(List<PriorMesh> parts, int maxVertices){
+		List<PriorMesh> batches = new LinkedList<>();
+		List<PriorMesh> current = new ArrayList<>();
+		long vertexCount = 0;
+		for(PriorMesh pm: parts){
+			if(!current.isEmpty() && vertexCount + pm.getVertexCount() > maxVertices){
+				batches.add(PriorMesh.merge(current));
+				current.clear();
+				vertexCount = 0;
+			}
+			current.add(pm);
+			vertexCount += pm.getVertexCount();
+		}
+		if(!current.isEmpty()){
+			batches.add(PriorMesh.merge(current));
+		}
+		return batches;
+	}
+
+	private Mesh buildMesh(PriorMesh pm, Options options){
+		Mesh m = new Mesh();
+		float[] color = pm.getColor();
+		if(pm.getVertexColors() != null){
+			m.setVertices(pm.getVertices(), pm.getVertexColors());
+		}
+		else if(options.vertexColors){
+			float[] colors = new float[4 * pm.getVertexCount()];
+			for(int i = 0; i < colors.length; ++i){
+				colors[i] = color[i%4];
+			}
+			m.setVertices(pm.getVertices(), colors);
+		}
+		else{
+			m.setVertices(pm.getVertices());
+		}
+		m.setColor(color[0], color[1], color[2], color[3]);
+		m.setBoundingBox(pm.getBoundingBox());
+
+		int[] ind = pm.getIndices();
+		if(pm.getVertexCount() <= Mesh.MAX_SHORT_INDEXED_VERTICES){
+			//indices above 32767 are stored as negative shorts, read back unsigned by GL
+			short[] shortInd = new short[ind.length];
+			for(int i = 0; i < ind.length; ++i){
+				shortInd[i] = (short)ind[i];
+			}
+			m.setIndices(shortInd);
+		}
+		else{
+			m.setIndices(ind);
+		}
+
+		for(int lod = 1; lod < options.levelsOfDetail; ++lod){
+			int triangles = ind.length / 3;
+			int[] coarser = MeshSimplifier.simplify(pm.getVertices(), ind, triangles / LOD_REDUCTION);
+			if(coarser.length == ind.length){
+				//nothing left to collapse
+				break;
+			}
+			if(options.optimize){
+				MeshOptimizer.reorder(coarser, pm.getVertexCount(), MeshOptimizer.CACHE_SIZE);
+			}
+			Log.d(TAG, String.format(Locale.ROOT, "level of detail %d: %d -> %d triangles",
+					lod, triangles, coarser.length / 3));
+			m.addLevelOfDetail(coarser);
+			ind = coarser;
+		}
+		return m;
+	}
+
+	/**
+	 * Builds the model drawn while the real one is loading: a small grey octahedron
+	 * @return the placeholder model
+	 */
+	public static ObjLoader createPlaceholder(){
+		Mesh m = new Mesh();
+		float s = 3f;
+		m.setVertices(new float[] {
+				s, 0, 0,   -s, 0, 0,
+				0, s, 0,    0, -s, 0,
+				0, 0, s,    0, 0, -s });
+		m.setIndices(new short[] {
+				0, 2, 4,   2, 1, 4,   1, 3, 4,   3, 0, 4,
+				2, 0, 5,   1, 2, 5,   3, 1, 5,   0, 3, 5 });
+		m.setColor(0.5f, 0.5f, 0.5f, 1.0f);
+		List<Mesh> meshes = new LinkedList<>();
+		meshes.add(m);
+		return new ObjLoader(meshes);
+	}
+
+	private ObjLoader() {
+	}
+
+	/*
+	 * Used to rebuild a model from already prepared meshes
+	 */
+	ObjLoader(List<Mesh> meshes) {
+		this.meshes.addAll(meshes);
+		sortByState();
+		Log.d(TAG, getMemoryReport());
+	}
+
+	/*
+	 * The draw order does not matter (opaque meshes, depth tested), the meshes sharing the
+	 * same states are drawn one after the other
+	 */
+	private void sortByState() {
+		Collections.sort(this.meshes, Mesh::compareState);
+	}
+
+	List<Mesh> getMeshes() {
+		return meshes;
+	}
+
+	/*
+	 * Copy of the model sharing the CPU side buffers of its meshes
+	 */
+	ObjLoader share() {
+		List<Mesh> copies = new LinkedList<>();
+		for(Mesh m: this.meshes){
+			copies.add(new Mesh(m));
+		}
+		ObjLoader copy = new ObjLoader();
+		copy.meshes.addAll(copies);
+		copy.radius = this.radius;
+		return copy;
+	}
+
+	/*
+	 * Memory used by the CPU side buffers of the meshes
+	 */
+	int getByteSize() {
+		int size = 0;
+		for(Mesh m: this.meshes){
+			size += m.getByteSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Describes the memory used by the meshes of the model, compared to the former layout
+	 * (separate position and 4 floats color arrays)
+	 * @return a one line report
+	 */
+	public String getMemoryReport(){
+		int vertices = 0, indices = 0;
+		long vertexBytes = 0, indexBytes = 0, lodBytes = 0;
+		for(Mesh m: this.meshes){
+			vertices += m.getVertexCount();
+			indices += m.getIndexCount();
+			vertexBytes += m.getVertices().capacity();
+			indexBytes += (long)m.getIndexSize() * m.getIndexCount();
+			lodBytes += m.getByteSize() - m.getVertices().capacity() - (long)m.getIndexSize() * m.getIndexCount();
+		}
+		long formerBytes = (long)vertices * (Mesh.POSITION_SIZE + 4 * 4) + indexBytes;
+		return String.format(Locale.ROOT,
+				"%d meshes, %d vertices, %d indices: %d bytes (vertices %d, indices %d, levels of detail %d), %d bytes with float colors",
+				meshes.size(), vertices, indices, vertexBytes + indexBytes + lodBytes, vertexBytes, indexBytes, lodBytes, formerBytes);
+	}
+
+	/**
+	 * Uploads the meshes to the GPU, to be called on the GL thread once the surface is created
+	 * @param gl the current GL context
+	 * @param state the state of the context, tells if it supports buffer objects
+	 */
+	public void upload(GL10 gl, GLStateCache state){
+		uploadState = state;
+		boolean uintSupported = Mesh.supportsUintIndices(gl);
+		for(Mesh m: this.meshes){
+			if(m.hasUintIndices() && !uintSupported){
+				Log.e(TAG, "32 bits indices are not supported by this device, load the model without Options.setUintIndices");
+			}
+			m.upload(gl, state);
+		}
+	}
+
+	/**
+	 * Uploads the meshes to the GPU of an OpenGL ES 2.0+ context, to be called on the GL thread
+	 * once the surface is created
+	 * @param program the program drawing the meshes in the current context
+	 */
+	public void upload(MeshProgram program){
+		boolean uintSupported = Mesh.supportsUintIndices(program);
+		for(Mesh m: this.meshes){
+			if(m.hasUintIndices() && !uintSupported){
+				Log.e(TAG, "32 bits indices are not supported by this device, load the model without Options.setUintIndices");
+			}
+			m.upload(program);
+		}
+	}
+
 	public void draw(GL10 gl){
+		draw(gl, 0);
+	}
+
+	/*
+	 * With the state of the context the model was uploaded to, or a state of its own if it was
+	 * not, created once
+	 */
+	public void draw(GL10 gl, int lod){
+		if(uploadState == null){
+			uploadState = new GLStateCache();
+			uploadState.onContextCreated(gl);
+		}
+		draw(gl, lod, uploadState);
+	}
+
+	/**
+	 * Draws a level of detail of the model, the meshes are sorted by state
+	 * @param gl the current GL context
+	 * @param lod the level, 0 for the full resolution. Meshes with fewer levels draw their
+	 *            coarsest one
+	 * @param state the state of the context, skips the redundant calls
+	 */
+	public void draw(GL10 gl, int lod, GLStateCache state){
+		draw(gl, lod, state, null);
+	}
+
+	/**
+	 * Draws the meshes of a level of detail that are in the view of the camera
+	 * @param gl the current GL context
+	 * @param lod the level, 0 for the full resolution
+	 * @param state the state of the context, its stats count the culled meshes
+	 * @param frustum the volume seen by the camera in the coordinates of the model, null to
+	 *                draw all the meshes
+	 */
+	public void draw(GL10 gl, int lod, GLStateCache state, Frustum frustum){
+		for(Mesh m: this.meshes){
+			if(isCulled(m, state, frustum)){
+				continue;
+			}
+			m.draw(gl, lod, state);
+		}
+	}
+
+	/**
+	 * Draws a level of detail of the model on an OpenGL ES 2.0+ context, the program must be in
+	 * use with the transformation of the model
+	 * @param program the program the model was uploaded with
+	 * @param lod the level, 0 for the full resolution
+	 * @param state the state of the context, skips the redundant calls
+	 */
+	public void draw(MeshProgram program, int lod, GLStateCache state){
+		draw(program, lod, state, null);
+	}
+
+	/**
+	 * Same as {@link #draw(GL10, int, GLStateCache, Frustum)} on an OpenGL ES 2.0+ context
+	 */
+	public void draw(MeshProgram program, int lod, GLStateCache state, Frustum frustum){
+		for(Mesh m: this.meshes){
+			if(isCulled(m, state, frustum)){
+				continue;
+			}
+			m.draw(program, lod, state);
+		}
+	}
+
+	private static boolean isCulled(Mesh m, GLStateCache state, Frustum frustum){
+		if(frustum == null || m.isVisible(frustum)){
+			return false;
+		}
+		RenderStats stats = state.getStats();
+		if(stats != null){
+			stats.addCulled();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of levels of detail of the model, at least 1
+	 */
+	public int getLevelCount(){
+		int levels = 1;
 		for(Mesh m: this.meshes){
-			m.draw(gl);
+			levels = Math.max(levels, m.getLevelCount());
+		}
+		return levels;
+	}
+
+	/**
+	 * @return the radius of the sphere centered on the origin enclosing the model, used to
+	 *         estimate its size on the screen
+	 */
+	public float getRadius(){
+		if(radius < 0){
+			float r = 0f;
+			for(Mesh m: this.meshes){
+				r = Math.max(r, m.getRadius());
+			}
+			radius = r;
 		}
+		return radius;
 	}
 	
 	private Material getRandomMaterial() {
@@ -217,22 +663,83 @@ public class ObjLoader{
 
 	private static class PriorMesh{
 		float[] vertices = null;
-		short[] indices = null;
-		float[] colors = null;
+		int[] indices = null;
+		float[] color = null;
+		// r,g,b,a of each vertex, only set on merged groups
+		float[] vertexColors = null;
+		// min x, y, z then max x, y, z of the vertices
+		float[] box = null;
+
+		/*
+		 * Concatenates groups into one mesh, the colors of the groups are moved into the
+		 * vertices. Each group keeps its own vertices, the simplification of the levels of
+		 * detail never joins two groups
+		 */
+		static PriorMesh merge(List<PriorMesh> parts){
+			int vertexCount = 0, indexCount = 0;
+			for(PriorMesh pm: parts){
+				vertexCount += pm.getVertexCount();
+				indexCount += pm.indices.length;
+			}
+			float[] vert = new float[3 * vertexCount];
+			float[] colors = new float[4 * vertexCount];
+			int[] ind = new int[indexCount];
+			float[] box = parts.get(0).getBoundingBox().clone();
+			int base = 0, next = 0;
+			for(PriorMesh pm: parts){
+				float[] partBox = pm.getBoundingBox();
+				for(int i = 0; i < 3; ++i){
+					box[i] = Math.min(box[i], partBox[i]);
+					box[3 + i] = Math.max(box[3 + i], partBox[3 + i]);
+				}
+				int count = pm.getVertexCount();
+				System.arraycopy(pm.vertices, 0, vert, 3 * base, 3 * count);
+				for(int v = base; v < base + count; ++v){
+					System.arraycopy(pm.color, 0, colors, 4 * v, 4);
+				}
+				for(int index: pm.indices){
+					ind[next++] = base + index;
+				}
+				base += count;
+			}
+			PriorMesh merged = new PriorMesh();
+			merged.setVertices(vert);
+			merged.setIndices(ind);
+			merged.setColor(parts.get(0).color);
+			merged.vertexColors = colors;
+			merged.box = box;
+			return merged;
+		}
 		
+		/*
+		 * Moves the vertices and computes their bounding box in the same pass
+		 */
         void recenter(float mX, float mY, float mZ){
+			float[] center = { mX, mY, mZ };
+			box = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+					-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
 			for(int i = 0; i < this.vertices.length; ++i){
-				if(i%3 == 0){
-					this.vertices[i] -= mX;
-				}
-				else if(i%3 == 1){
-					this.vertices[i] -= mY;
+				int axis = i%3;
+				float c = this.vertices[i] - center[axis];
+				this.vertices[i] = c;
+				if(c < box[axis]){
+					box[axis] = c;
 				}
-				else if(i%3 == 2){
-					this.vertices[i] -= mZ;
+				if(c > box[3 + axis]){
+					box[3 + axis] = c;
 				}
 			}
 		}
+
+		/*
+		 * Computed by recenter, or from the vertices of the split chunks
+		 */
+		float[] getBoundingBox(){
+			if(box == null){
+				recenter(0f, 0f, 0f);
+			}
+			return box;
+		}
 		
         float[] getVertices() {
 			return vertices;
@@ -240,17 +747,102 @@ public class ObjLoader{
         void setVertices(float[] vertices) {
 			this.vertices = vertices;
 		}
-        short[] getIndices() {
+        int[] getIndices() {
 			return indices;
 		}
-        void setIndices(short[] indices) {
+        void setIndices(int[] indices) {
 			this.indices = indices;
 		}
-        float[] getColors() {
-			return colors;
+        int getVertexCount() {
+			return vertices.length / 3;
+		}
+
+		/*
+		 * Sum of the coordinates and number of vertices, used to compute the centroid
+		 */
+		double[] sum(){
+			double x = 0, y = 0, z = 0;
+			for(int i = 0; i < vertices.length; i += 3){
+				x += vertices[i];
+				y += vertices[i + 1];
+				z += vertices[i + 2];
+			}
+			return new double[] { x, y, z, getVertexCount() };
+		}
+
+		void optimize(){
+			int before = getVertexCount();
+			float acmrBefore = MeshOptimizer.acmr(indices, before, MeshOptimizer.CACHE_SIZE);
+			vertices = MeshOptimizer.compact(vertices, indices);
+			MeshOptimizer.reorder(indices, getVertexCount(), MeshOptimizer.CACHE_SIZE);
+			float acmrAfter = MeshOptimizer.acmr(indices, getVertexCount(), MeshOptimizer.CACHE_SIZE);
+			Log.d(TAG, String.format(Locale.ROOT, "optimized group: %d -> %d vertices, ACMR %.3f -> %.3f",
+					before, getVertexCount(), acmrBefore, acmrAfter));
+		}
+
+		/*
+		 * Splits the mesh in chunks using at most maxVertices vertices each, the triangles are
+		 * distributed in file order and each chunk only keeps the vertices it references
+		 */
+		List<PriorMesh> split(int maxVertices){
+			List<PriorMesh> chunks = new LinkedList<>();
+			int[] remap = new int[getVertexCount()];
+			Arrays.fill(remap, -1);
+			int[] used = new int[Math.min(maxVertices, remap.length)];
+			int[] chunkIndices = new int[indices.length];
+			int usedCount = 0, indexCount = 0;
+
+			for(int t = 0; t < indices.length; t += 3){
+				int newVertices = 0;
+				for(int j = 0; j < 3; ++j){
+					int v = indices[t + j];
+					// a vertex repeated in the triangle is counted once
+					if(remap[v] == -1 && (j == 0 || v != indices[t]) && (j < 2 || v != indices[t + 1])){
+						++newVertices;
+					}
+				}
+				if(usedCount + newVertices > maxVertices){
+					chunks.add(chunk(used, usedCount, chunkIndices, indexCount));
+					for(int i = 0; i < usedCount; ++i){
+						remap[used[i]] = -1;
+					}
+					usedCount = 0;
+					indexCount = 0;
+				}
+				for(int j = 0; j < 3; ++j){
+					int v = indices[t + j];
+					if(remap[v] == -1){
+						remap[v] = usedCount;
+						used[usedCount++] = v;
+					}
+					chunkIndices[indexCount++] = remap[v];
+				}
+			}
+			if(indexCount > 0){
+				chunks.add(chunk(used, usedCount, chunkIndices, indexCount));
+			}
+			return chunks;
+		}
+
+		private PriorMesh chunk(int[] used, int usedCount, int[] chunkIndices, int indexCount){
+			PriorMesh c = new PriorMesh();
+			float[] vert = new float[3 * usedCount];
+			for(int i = 0; i < usedCount; ++i){
+				System.arraycopy(vertices, 3 * used[i], vert, 3 * i, 3);
+			}
+			c.setVertices(vert);
+			c.setIndices(Arrays.copyOf(chunkIndices, indexCount));
+			c.setColor(color);
+			return c;
+		}
+        float[] getColor() {
+			return color;
+		}
+        void setColor(float[] color) {
+			this.color = color;
 		}
-        void setColors(float[] colors) {
-			this.colors = colors;
+        float[] getVertexColors() {
+			return vertexColors;
 		}
 	}
 
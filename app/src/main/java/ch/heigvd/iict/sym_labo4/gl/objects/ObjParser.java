@@ -0,0 +1,320 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single pass, streaming tokenizer for the subset of the Wavefront .obj format used by
+ * {@link ObjLoader} ("g", "usemtl", "v" and "f" statements).
+ *
+ * The input is read by chunks into a reused byte buffer and numbers are decoded directly from
+ * the bytes into growable primitive arrays: no String, no boxed value and no array is created
+ * per line or per token. Only one String (the material name) is created per group.
+ */
+class ObjParser {
+
+    /**
+     * Receives the content of the model, group by group.
+     */
+    interface GroupHandler {
+        /**
+         * Called once per group
+         * @param vertices  the x,y,z coordinates of the vertices declared in the group,
+         *                  only the first {@code vertexCount * 3} values are meaningful
+         * @param vertexCount the number of vertices declared in the group
+         * @param faces     the 0-based (global) vertex indices of the triangles of the group,
+         *                  only the first {@code indexCount} values are meaningful
+         * @param indexCount the number of indices
+         * @param material  the material name declared after the group, or null
+         */
+        void onGroup(float[] vertices, int vertexCount, int[] faces, int indexCount, String material);
+    }
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+
+    // current group, the arrays are reused from one group to the next
+    private float[] vertices = new float[3 * 1024];
+    private int vertexCount = 0;
+    private int[] faces = new int[3 * 1024];
+    private int indexCount = 0;
+    private String material = null;
+
+    // total number of vertices read, used to resolve relative (negative) indices
+    private int totalVertices = 0;
+
+    // scratch storage used to triangulate polygons and to read names
+    private int[] polygon = new int[16];
+    private byte[] name = new byte[64];
+
+    ObjParser(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Parser reading a part of a model already in memory
+     * @param data the content of the model
+     * @param offset the start of the part to parse, must be the start of a line
+     * @param length the length of the part
+     * @param vertexBase the number of vertices declared before the part, used to resolve
+     *                   relative indices
+     */
+    ObjParser(byte[] data, int offset, int length, int vertexBase) {
+        this.in = null;
+        this.buffer = data;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.totalVertices = vertexBase;
+    }
+
+    /**
+     * Splits a model in memory at its group statements, each part can then be parsed
+     * independently with {@link #ObjParser(byte[], int, int, int)}
+     * @param data the content of the model
+     * @param length the length of the content
+     * @return for each part, its offset and the number of vertices declared before it
+     */
+    static int[] splitGroups(byte[] data, int length) {
+        int[] parts = new int[16];
+        int count = 1; // the first part starts at 0, after no vertex
+        int vertices = 0;
+        boolean lineStart = true;
+        for (int i = 0; i < length; ++i) {
+            byte c = data[i];
+            if (lineStart && i + 1 < length) {
+                byte next = data[i + 1];
+                if (c == 'v' && next == ' ') {
+                    ++vertices;
+                } else if (c == 'g' && i > 0 && (next == ' ' || next == '\n' || next == '\r')) {
+                    if (2 * count + 2 > parts.length) parts = Arrays.copyOf(parts, 2 * parts.length);
+                    parts[2 * count] = i;
+                    parts[2 * count + 1] = vertices;
+                    ++count;
+                }
+            }
+            lineStart = c == '\n';
+        }
+        return Arrays.copyOf(parts, 2 * count);
+    }
+
+    /**
+     * Parses the whole stream
+     * @param handler receives every non-empty group
+     * @throws IOException if the stream cannot be read
+     */
+    void parse(GroupHandler handler) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == 'v' && peek() == ' ') {
+                read();
+                readVertex();
+            } else if (c == 'f' && peek() == ' ') {
+                read();
+                readFace();
+            } else if (c == 'g' && (peek() == ' ' || peek() == '\n' || peek() == '\r')) {
+                skipLine();
+                flush(handler);
+                readGroupMaterial();
+                continue;
+            }
+            skipLine();
+        }
+        flush(handler);
+    }
+
+    private void flush(GroupHandler handler) {
+        if (vertexCount > 0 && indexCount > 0) {
+            handler.onGroup(vertices, vertexCount, faces, indexCount, material);
+        }
+        vertexCount = 0;
+        indexCount = 0;
+    }
+
+    /*
+     * The line following a group statement contains the material to use ("usemtl name")
+     */
+    private void readGroupMaterial() throws IOException {
+        material = null;
+        skipBlanks();
+        // skip the keyword
+        int c = peek();
+        while (c != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            read();
+            c = peek();
+        }
+        skipBlanks();
+        int length = 0;
+        c = peek();
+        while (c != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            if (length == name.length) name = Arrays.copyOf(name, 2 * length);
+            name[length++] = (byte) read();
+            c = peek();
+        }
+        if (length > 0) material = new String(name, 0, length, StandardCharsets.UTF_8);
+        skipLine();
+    }
+
+    private void readVertex() throws IOException {
+        if (3 * vertexCount + 3 > vertices.length) {
+            vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+        }
+        int offset = 3 * vertexCount;
+        vertices[offset] = readFloat();
+        vertices[offset + 1] = readFloat();
+        vertices[offset + 2] = readFloat();
+        ++vertexCount;
+        ++totalVertices;
+    }
+
+    /*
+     * Reads a face "f v1[/vt1][/vn1] v2... vn", polygons with more than 3 vertices are
+     * triangulated as a fan around the first vertex
+     */
+    private void readFace() throws IOException {
+        int count = 0;
+        while (true) {
+            skipBlanks();
+            int c = peek();
+            if (c == -1 || c == '\n' || c == '\r') break;
+            int index = readInt();
+            // skip texture and normal indices
+            c = peek();
+            while (c != -1 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                read();
+                c = peek();
+            }
+            if (count == polygon.length) polygon = Arrays.copyOf(polygon, 2 * count);
+            polygon[count++] = index < 0 ? totalVertices + index : index - 1;
+        }
+        for (int i = 2; i < count; ++i) {
+            if (indexCount + 3 > faces.length) {
+                faces = Arrays.copyOf(faces, 2 * faces.length);
+            }
+            faces[indexCount++] = polygon[0];
+            faces[indexCount++] = polygon[i - 1];
+            faces[indexCount++] = polygon[i];
+        }
+    }
+
+    private int readInt() throws IOException {
+        skipBlanks();
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            read();
+        }
+        int value = 0;
+        c = peek();
+        while (c >= '0' && c <= '9') {
+            value = 10 * value + (c - '0');
+            read();
+            c = peek();
+        }
+        return negative ? -value : value;
+    }
+
+    /*
+     * Decodes a decimal number, the significant digits are accumulated in a long and scaled
+     * once at the end. Numbers written by modelling tools have far less than 18 significant
+     * digits, the remaining ones are dropped
+     */
+    private float readFloat() throws IOException {
+        skipBlanks();
+        boolean negative = false;
+        int c = peek();
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            read();
+            c = peek();
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (c >= '0' && c <= '9') {
+            if (digits < 18) {
+                mantissa = 10 * mantissa + (c - '0');
+                if (mantissa != 0) ++digits;
+            } else {
+                ++exponent;
+            }
+            read();
+            c = peek();
+        }
+        if (c == '.') {
+            read();
+            c = peek();
+            while (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = 10 * mantissa + (c - '0');
+                    if (mantissa != 0) ++digits;
+                    --exponent;
+                }
+                read();
+                c = peek();
+            }
+        }
+        if (c == 'e' || c == 'E') {
+            read();
+            exponent += readInt();
+        }
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POW10.length ? value / POW10[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private void skipBlanks() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\t') {
+            read();
+            c = peek();
+        }
+    }
+
+    private void skipLine() throws IOException {
+        int c = read();
+        while (c != -1 && c != '\n') {
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) return false;
+        int n = in.read(buffer, 0, buffer.length);
+        while (n == 0) {
+            n = in.read(buffer, 0, buffer.length);
+        }
+        if (n < 0) {
+            limit = pos = 0;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,83 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+/**
+ * Work submitted to GL while drawing a frame, filled by the {@link GLStateCache} given to
+ * {@link Mesh#draw(javax.microedition.khronos.opengles.GL10, int, GLStateCache)}
+ */
+public class RenderStats {
+
+    private int drawCalls = 0;
+    private long triangles = 0;
+    private int glCalls = 0;
+    private int skippedGlCalls = 0;
+    private int culledMeshes = 0;
+
+    /**
+     * Counts a draw call
+     * @param indexCount the number of indices drawn as triangles
+     */
+    void addDraw(int indexCount) {
+        ++drawCalls;
+        triangles += indexCount / 3;
+    }
+
+    /*
+     * Counts a mesh outside of the view, not drawn
+     */
+    void addCulled() {
+        ++culledMeshes;
+    }
+
+    void addGlCall() {
+        ++glCalls;
+    }
+
+    void addSkippedGlCall() {
+        ++skippedGlCalls;
+    }
+
+    /**
+     * Clears the counters, at the start of a frame
+     */
+    public void reset() {
+        drawCalls = 0;
+        triangles = 0;
+        glCalls = 0;
+        skippedGlCalls = 0;
+        culledMeshes = 0;
+    }
+
+    /**
+     * @return the draw calls, one per drawn mesh
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * @return the meshes skipped because they are outside of the view
+     */
+    public int getCulledMeshes() {
+        return culledMeshes;
+    }
+
+    public long getTriangles() {
+        return triangles;
+    }
+
+    /**
+     * @return the GL calls issued by the meshes
+     */
+    public int getGlCalls() {
+        return glCalls;
+    }
+
+    /**
+     * @return the GL calls skipped by the state cache, the meshes would have issued
+     *         getGlCalls() + getSkippedGlCalls() calls without it
+     */
+    public int getSkippedGlCalls() {
+        return skippedGlCalls;
+    }
+
+}
@@ -0,0 +1,115 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Orientation computed from the raw sensors, for the devices without a rotation vector sensor.
+ *
+ * The gyroscope, when present, is integrated for fast and smooth rotations, its drift is
+ * corrected by slowly pulling the orientation towards the absolute one given by the
+ * accelerometer and the magnetometer (complementary filter, done in quaternion space with
+ * slerp). Without gyroscope the absolute orientation is only low-pass filtered. The absolute
+ * orientation is only computed once both sensors have delivered a new sample.
+ */
+class ComplementaryFilterEngine extends OrientationEngine {
+
+    // time constant of the correction towards the absolute orientation (s)
+    private static final float GYRO_CORRECTION = 0.5f;
+    private static final float NO_GYRO_SMOOTHING = 0.1f;
+
+    private final float[] gravity = new float[3];
+    private final float[] geomagnetic = new float[3];
+    private final float[] rotation = new float[16];
+    private final float[] absolute = new float[4];
+    private final float[] orientation = new float[4];
+
+    private boolean hasGyroscope = false;
+    private boolean freshGravity = false, freshGeomagnetic = false;
+    private boolean initialized = false;
+    private long lastGyroTimestamp = 0, lastAbsoluteTimestamp = 0;
+
+    ComplementaryFilterEngine(SensorManager sensorManager, Listener listener) {
+        super(sensorManager, listener);
+    }
+
+    @Override
+    protected boolean register(Handler handler) {
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        Sensor magneticField = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        if (accelerometer == null || magneticField == null) return false;
+        register(accelerometer, handler);
+        register(magneticField, handler);
+        hasGyroscope = register(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE), handler);
+        return true;
+    }
+
+    @Override
+    protected void reset() {
+        freshGravity = freshGeomagnetic = initialized = false;
+        lastGyroTimestamp = lastAbsoluteTimestamp = 0;
+    }
+
+    @Override
+    protected void onEvent(SensorEvent event) {
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_GYROSCOPE:
+                onGyroscope(event);
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                System.arraycopy(event.values, 0, gravity, 0, 3);
+                freshGravity = true;
+                onAbsolute(event.timestamp);
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                System.arraycopy(event.values, 0, geomagnetic, 0, 3);
+                freshGeomagnetic = true;
+                onAbsolute(event.timestamp);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onGyroscope(SensorEvent event) {
+        if (initialized && lastGyroTimestamp != 0) {
+            float dt = (event.timestamp - lastGyroTimestamp) * 1e-9f;
+            Quaternions.integrate(orientation, event.values[0], event.values[1], event.values[2], dt);
+            publish(orientation, event.timestamp);
+        }
+        lastGyroTimestamp = event.timestamp;
+    }
+
+    private void onAbsolute(long timestamp) {
+        // wait for a new sample of both sensors, not a stale one
+        if (!freshGravity || !freshGeomagnetic) return;
+        freshGravity = freshGeomagnetic = false;
+        if (!SensorManager.getRotationMatrix(rotation, null, gravity, geomagnetic)) {
+            // free fall, the orientation is unknown
+            return;
+        }
+        Quaternions.fromRotationMatrix(rotation, absolute);
+
+        if (!initialized) {
+            System.arraycopy(absolute, 0, orientation, 0, 4);
+            initialized = true;
+        } else {
+            float dt = (timestamp - lastAbsoluteTimestamp) * 1e-9f;
+            float factor = Quaternions.smoothingFactor(dt, hasGyroscope ? GYRO_CORRECTION : NO_GYRO_SMOOTHING);
+            Quaternions.slerp(orientation, absolute, factor, orientation);
+        }
+        lastAbsoluteTimestamp = timestamp;
+        // with a gyroscope the orientation is published at its rate
+        if (!hasGyroscope) {
+            publish(orientation, timestamp);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+    }
+
+}
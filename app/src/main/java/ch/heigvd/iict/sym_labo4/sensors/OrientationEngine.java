@@ -0,0 +1,223 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Locale;
+
+/**
+ * Source of the orientation of the device, computed from its sensors.
+ *
+ * The sensor events are received and filtered on a dedicated {@link HandlerThread}, batched in
+ * the hardware FIFO of the sensors that have one. The updates of the orientation are coalesced:
+ * the listener is called at most once per display frame, on the engine thread in a
+ * {@link Choreographer} callback: it can request its redraw at once, without waiting for another
+ * vsync. An orientation within {@link #DEAD_BAND_RAD} of the last one delivered is not: the noise
+ * of the filters on a device lying still requests no frame. The orientation is given as a
+ * rotation matrix laid out as the ones of
+ * {@link SensorManager#getRotationMatrix(float[], float[], float[], float[])}.
+ * Use {@link #create(SensorManager, Listener)} to get the best engine of the device.
+ */
+public abstract class OrientationEngine implements SensorEventListener {
+
+    private static final String TAG = OrientationEngine.class.getSimpleName();
+
+    // events may be delivered in batches, saving wake-ups of the application processor
+    static final int MAX_REPORT_LATENCY_US = 40000;
+
+    private static final long STATS_PERIOD_MS = 1000;
+
+    // smallest rotation delivered, below a pixel at the edge of the compass
+    static final float DEAD_BAND_RAD = (float) Math.toRadians(0.1);
+    private static final float DEAD_BAND_SIN2 = (float) Math.pow(Math.sin(DEAD_BAND_RAD / 2), 2);
+
+    /**
+     * Receives the orientation, on the thread of the engine
+     */
+    public interface Listener {
+        /**
+         * @param rotationMatrix the 4x4 rotation matrix, reused by the engine after the call
+         * @param timestampNs the time of the last sensor event used, in the
+         *                    {@link android.os.SystemClock#elapsedRealtimeNanos()} time base
+         * @param frameTimeNanos the time of the vsync of the display frame, in the
+         *                       {@link System#nanoTime()} time base
+         */
+        void onOrientationChanged(float[] rotationMatrix, long timestampNs, long frameTimeNanos);
+    }
+
+    protected final SensorManager sensorManager;
+    private final Listener listener;
+
+    private HandlerThread thread = null;
+    private Handler handler = null;
+
+    // the fields below are only used on the engine thread
+    private Choreographer choreographer = null;
+    private final Choreographer.FrameCallback frameCallback = this::onFrame;
+    private boolean frameScheduled = false;
+
+    // last orientation, handed to the listener at the next frame
+    private final float[] pending = new float[4];
+    private long pendingTimestamp = 0;
+    private final float[] matrix = new float[16];
+    // last orientation handed to the listener, none before the first frame
+    private final float[] shown = new float[4];
+    private boolean hasShown = false;
+
+    // events received and orientations delivered since the start of the period
+    private int received = 0, delivered = 0;
+    private long statsStart = 0;
+    private volatile String stats = "";
+
+    protected OrientationEngine(SensorManager sensorManager, Listener listener) {
+        this.sensorManager = sensorManager;
+        this.listener = listener;
+    }
+
+    /**
+     * Picks the engine: the fused rotation vector sensor when there is one, a complementary
+     * filter of the raw sensors otherwise
+     * @param sensorManager the sensor manager
+     * @param listener receives the orientation
+     * @return the engine, not started
+     */
+    public static OrientationEngine create(SensorManager sensorManager, Listener listener) {
+        OrientationEngine engine;
+        if (sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR) != null) {
+            engine = new RotationVectorEngine(sensorManager, listener);
+        } else {
+            engine = new ComplementaryFilterEngine(sensorManager, listener);
+        }
+        Log.d(TAG, "Using " + engine.getClass().getSimpleName());
+        return engine;
+    }
+
+    /**
+     * Registers the sensors, the listener is called until {@link #stop()}
+     */
+    public void start() {
+        if (thread != null) return;
+        thread = new HandlerThread(getClass().getSimpleName(), Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> {
+            // paced on the vsync, delivered on the engine thread
+            choreographer = Choreographer.getInstance();
+            frameScheduled = false;
+            hasShown = false;
+            received = delivered = 0;
+            statsStart = SystemClock.elapsedRealtime();
+            reset();
+        });
+        if (!register(handler)) {
+            Log.e(TAG, "No sensor available to compute the orientation");
+        }
+    }
+
+    /**
+     * Unregisters the sensors and stops the thread of the engine
+     */
+    public void stop() {
+        if (thread == null) return;
+        sensorManager.unregisterListener(this);
+        handler.post(() -> choreographer.removeFrameCallback(frameCallback));
+        // the messages already queued are still handled
+        thread.quitSafely();
+        thread = null;
+        handler = null;
+    }
+
+    /**
+     * @return the events received, coalesced and delivered during the last second
+     */
+    public String getStats() {
+        return stats;
+    }
+
+    /**
+     * Registers the sensors used by the engine, see {@link #register(Sensor, Handler)}
+     * @param handler the handler of the engine thread, receiving the events
+     * @return false if a needed sensor is missing
+     */
+    protected abstract boolean register(Handler handler);
+
+    /**
+     * Registers a sensor at the game rate, batched when it has a hardware FIFO
+     * @param sensor the sensor, may be null
+     * @param handler the handler of the engine thread
+     * @return true if the sensor is registered
+     */
+    protected boolean register(Sensor sensor, Handler handler) {
+        if (sensor == null) return false;
+        int latency = sensor.getFifoMaxEventCount() > 0 ? MAX_REPORT_LATENCY_US : 0;
+        Log.d(TAG, String.format(Locale.ROOT, "%s: FIFO of %d events, batched for %d us",
+                sensor.getName(), sensor.getFifoMaxEventCount(), latency));
+        return sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME, latency, handler);
+    }
+
+    /**
+     * Forgets the previous state, called on the engine thread before the first event
+     */
+    protected abstract void reset();
+
+    /**
+     * Updates the filters with a sensor event, engine thread only
+     * @param event the event
+     */
+    protected abstract void onEvent(SensorEvent event);
+
+    @Override
+    public final void onSensorChanged(SensorEvent event) {
+        ++received;
+        onEvent(event);
+        // the events keep coming while no frame is delivered
+        updateStats();
+    }
+
+    /**
+     * Sets the new orientation, handed to the listener at the next display frame if it moved
+     * beyond the dead band. Engine thread only
+     * @param orientation the orientation quaternion, copied
+     * @param timestampNs the time of the event
+     */
+    protected void publish(float[] orientation, long timestampNs) {
+        System.arraycopy(orientation, 0, pending, 0, 4);
+        pendingTimestamp = timestampNs;
+        // compared to the orientation shown, a slow rotation still adds up to a frame
+        if (hasShown && Quaternions.halfAngleSinSquared(shown, pending) < DEAD_BAND_SIN2) return;
+        if (!frameScheduled) {
+            frameScheduled = true;
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        System.arraycopy(pending, 0, shown, 0, 4);
+        hasShown = true;
+        Quaternions.toRotationMatrix(pending, matrix);
+        listener.onOrientationChanged(matrix, pendingTimestamp, frameTimeNanos);
+        ++delivered;
+    }
+
+    private void updateStats() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - statsStart >= STATS_PERIOD_MS) {
+            float seconds = (now - statsStart) / 1000f;
+            stats = String.format(Locale.ROOT, "%.0f events/s received, %.0f coalesced or still, %.0f rendered",
+                    received / seconds, (received - delivered) / seconds, delivered / seconds);
+            Log.d(TAG, stats);
+            received = delivered = 0;
+            statsStart = now;
+        }
+    }
+
+}
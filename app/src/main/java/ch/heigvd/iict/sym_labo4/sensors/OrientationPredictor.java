@@ -0,0 +1,107 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+/**
+ * Extrapolates the orientation to the time a frame is displayed, to compensate the latency
+ * between the sensors and the screen.
+ *
+ * The angular velocity is the mean one over the last few orientation samples, it is assumed
+ * constant during the extrapolation. The extrapolation is capped, a long pause between the
+ * samples must not make the orientation run away. Not thread-safe, nothing is allocated after
+ * construction.
+ */
+public final class OrientationPredictor {
+
+    // about two frames: the frame being drawn is displayed after the next vsync
+    public static final long DEFAULT_HORIZON_NS = 33000000L;
+
+    private static final int SAMPLES = 4;
+    private static final long MAX_EXTRAPOLATION_NS = 100000000L;
+
+    private final float[][] orientations = new float[SAMPLES][4];
+    private final long[] timestamps = new long[SAMPLES];
+    private int newest = 0;
+    private int count = 0;
+
+    private long horizonNs;
+
+    private final float[] inverse = new float[4];
+    private final float[] delta = new float[4];
+
+    /**
+     * @param horizonNs the time between the drawing of a frame and its display
+     */
+    public OrientationPredictor(long horizonNs) {
+        this.horizonNs = horizonNs;
+    }
+
+    /**
+     * @param horizonNs the time between the drawing of a frame and its display
+     */
+    public void setHorizon(long horizonNs) {
+        this.horizonNs = horizonNs;
+    }
+
+    public long getHorizon() {
+        return horizonNs;
+    }
+
+    /**
+     * Forgets the samples
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Adds an orientation sample, older samples than the last one are ignored
+     * @param orientation the orientation quaternion, copied
+     * @param timestampNs the time of the sample, as {@link android.hardware.SensorEvent#timestamp}
+     */
+    public void addSample(float[] orientation, long timestampNs) {
+        if (count > 0 && timestampNs <= timestamps[newest]) return;
+        float[] previous = orientations[newest];
+        newest = (newest + 1) % SAMPLES;
+        float[] q = orientations[newest];
+        // keep the samples in the same hemisphere, q and -q are the same rotation
+        float sign = count > 0
+                && previous[0] * orientation[0] + previous[1] * orientation[1]
+                + previous[2] * orientation[2] + previous[3] * orientation[3] < 0f ? -1f : 1f;
+        for (int i = 0; i < 4; ++i) {
+            q[i] = sign * orientation[i];
+        }
+        timestamps[newest] = timestampNs;
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    /**
+     * Predicts the orientation displayed by a frame drawn now
+     * @param nowNs the current time, in the time base of the samples
+     * @param out the predicted orientation, the last sample when there are less than 2 samples
+     * @return false if there was no sample
+     */
+    public boolean predict(long nowNs, float[] out) {
+        if (count == 0) return false;
+        float[] last = orientations[newest];
+        System.arraycopy(last, 0, out, 0, 4);
+        if (count < 2) return true;
+
+        int oldest = (newest - count + 1 + SAMPLES) % SAMPLES;
+        float window = (timestamps[newest] - timestamps[oldest]) * 1e-9f;
+        long extrapolation = Math.min(nowNs + horizonNs - timestamps[newest], MAX_EXTRAPOLATION_NS);
+        if (window <= 0f || extrapolation <= 0) return true;
+
+        // rotation between the oldest and the newest sample, in the device frame
+        Quaternions.conjugate(orientations[oldest], inverse);
+        Quaternions.multiply(inverse, last, delta);
+        if (delta[0] < 0f) {
+            for (int i = 0; i < 4; ++i) delta[i] = -delta[i];
+        }
+        float sin = (float) Math.sqrt(delta[1] * delta[1] + delta[2] * delta[2] + delta[3] * delta[3]);
+        if (sin == 0f) return true;
+        float angle = 2f * (float) Math.atan2(sin, delta[0]);
+        float speed = angle / window / sin;
+        Quaternions.integrate(out, delta[1] * speed, delta[2] * speed, delta[3] * speed, extrapolation * 1e-9f);
+        return true;
+    }
+
+}
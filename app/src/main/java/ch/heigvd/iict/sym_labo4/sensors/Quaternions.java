@@ -0,0 +1,227 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+/**
+ * Unit quaternion operations on float[4] arrays holding (w, x, y, z), the layout of
+ * {@link android.hardware.SensorManager#getQuaternionFromVector(float[], float[])}.
+ *
+ * The quaternions rotate the device frame into the world frame, as the rotation matrices of
+ * {@link android.hardware.SensorManager#getRotationMatrix(float[], float[], float[], float[])}.
+ * Nothing is allocated, the results are written into arrays given by the caller, which may be
+ * one of the operands unless stated otherwise.
+ */
+public final class Quaternions {
+
+    // below this angle cosine, slerp is replaced by a normalized linear interpolation
+    private static final float SLERP_THRESHOLD = 0.9995f;
+
+    private Quaternions() {}
+
+    /**
+     * Sets the identity rotation
+     * @param q the quaternion to reset
+     */
+    public static void identity(float[] q) {
+        q[0] = 1f;
+        q[1] = q[2] = q[3] = 0f;
+    }
+
+    /**
+     * Normalizes a quaternion in place
+     * @param q the quaternion, reset to the identity if its norm is 0
+     */
+    public static void normalize(float[] q) {
+        float n = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        if (n == 0f) {
+            identity(q);
+            return;
+        }
+        q[0] /= n;
+        q[1] /= n;
+        q[2] /= n;
+        q[3] /= n;
+    }
+
+    /**
+     * Conjugate, the inverse rotation of a unit quaternion
+     * @param q the quaternion
+     * @param out the result
+     */
+    public static void conjugate(float[] q, float[] out) {
+        out[0] = q[0];
+        out[1] = -q[1];
+        out[2] = -q[2];
+        out[3] = -q[3];
+    }
+
+    /**
+     * Hamilton product a * b (rotation b then a)
+     * @param a the left operand
+     * @param b the right operand
+     * @param out the result
+     */
+    public static void multiply(float[] a, float[] b, float[] out) {
+        float w = a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3];
+        float x = a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2];
+        float y = a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1];
+        float z = a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0];
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    /**
+     * Integrates an angular velocity measured in the frame of the rotated body (gyroscope)
+     * @param q the orientation, updated in place
+     * @param wx the rotation speed around x (rad/s)
+     * @param wy the rotation speed around y (rad/s)
+     * @param wz the rotation speed around z (rad/s)
+     * @param dt the duration (s)
+     */
+    public static void integrate(float[] q, float wx, float wy, float wz, float dt) {
+        float speed = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+        float half = speed * dt / 2f;
+        float s = speed > 0f ? (float) Math.sin(half) / speed : dt / 2f;
+        float dw = (float) Math.cos(half), dx = wx * s, dy = wy * s, dz = wz * s;
+        // q * dq, written out to avoid a temporary array
+        float w = q[0] * dw - q[1] * dx - q[2] * dy - q[3] * dz;
+        float x = q[0] * dx + q[1] * dw + q[2] * dz - q[3] * dy;
+        float y = q[0] * dy - q[1] * dz + q[2] * dw + q[3] * dx;
+        float z = q[0] * dz + q[1] * dy - q[2] * dx + q[3] * dw;
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+        normalize(q);
+    }
+
+    /**
+     * Distance between two rotations, precise for the small angles: the cosine of their dot
+     * product is too close to 1 to be told apart in floats below a few tenths of a degree
+     * @param a the first rotation
+     * @param b the second rotation
+     * @return the squared sine of half the angle of the rotation from a to b
+     */
+    public static float halfAngleSinSquared(float[] a, float[] b) {
+        // vector part of conjugate(a) * b
+        float x = a[0] * b[1] - a[1] * b[0] - a[2] * b[3] + a[3] * b[2];
+        float y = a[0] * b[2] + a[1] * b[3] - a[2] * b[0] - a[3] * b[1];
+        float z = a[0] * b[3] - a[1] * b[2] + a[2] * b[1] - a[3] * b[0];
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * Spherical linear interpolation along the shortest path
+     * @param a the start, returned for t = 0
+     * @param b the end, returned for t = 1
+     * @param t the interpolation factor
+     * @param out the result
+     */
+    public static void slerp(float[] a, float[] b, float t, float[] out) {
+        float dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+        // q and -q are the same rotation, take the closest one
+        float sign = 1f;
+        if (dot < 0f) {
+            dot = -dot;
+            sign = -1f;
+        }
+        float ka, kb;
+        if (dot > SLERP_THRESHOLD) {
+            ka = 1f - t;
+            kb = t;
+        } else {
+            float theta = (float) Math.acos(dot);
+            float sin = (float) Math.sin(theta);
+            ka = (float) Math.sin((1f - t) * theta) / sin;
+            kb = (float) Math.sin(t * theta) / sin;
+        }
+        kb *= sign;
+        out[0] = ka * a[0] + kb * b[0];
+        out[1] = ka * a[1] + kb * b[1];
+        out[2] = ka * a[2] + kb * b[2];
+        out[3] = ka * a[3] + kb * b[3];
+        normalize(out);
+    }
+
+    /**
+     * Converts a rotation matrix to a quaternion
+     * @param m a 3x3 or 4x4 row-major rotation matrix, as given by getRotationMatrix
+     * @param q the result, must not be m
+     */
+    public static void fromRotationMatrix(float[] m, float[] q) {
+        int row = m.length == 16 ? 4 : 3;
+        float m00 = m[0], m01 = m[1], m02 = m[2];
+        float m10 = m[row], m11 = m[row + 1], m12 = m[row + 2];
+        float m20 = m[2 * row], m21 = m[2 * row + 1], m22 = m[2 * row + 2];
+        float trace = m00 + m11 + m22;
+        if (trace > 0f) {
+            float s = 2f * (float) Math.sqrt(trace + 1f);
+            q[0] = s / 4f;
+            q[1] = (m21 - m12) / s;
+            q[2] = (m02 - m20) / s;
+            q[3] = (m10 - m01) / s;
+        } else if (m00 > m11 && m00 > m22) {
+            float s = 2f * (float) Math.sqrt(1f + m00 - m11 - m22);
+            q[0] = (m21 - m12) / s;
+            q[1] = s / 4f;
+            q[2] = (m01 + m10) / s;
+            q[3] = (m02 + m20) / s;
+        } else if (m11 > m22) {
+            float s = 2f * (float) Math.sqrt(1f + m11 - m00 - m22);
+            q[0] = (m02 - m20) / s;
+            q[1] = (m01 + m10) / s;
+            q[2] = s / 4f;
+            q[3] = (m12 + m21) / s;
+        } else {
+            float s = 2f * (float) Math.sqrt(1f + m22 - m00 - m11);
+            q[0] = (m10 - m01) / s;
+            q[1] = (m02 + m20) / s;
+            q[2] = (m12 + m21) / s;
+            q[3] = s / 4f;
+        }
+        normalize(q);
+    }
+
+    /**
+     * Converts a quaternion to a 4x4 rotation matrix, laid out as the ones of
+     * getRotationMatrixFromVector
+     * @param q the quaternion
+     * @param m the result, 16 floats
+     */
+    public static void toRotationMatrix(float[] q, float[] m) {
+        float w = q[0], x = q[1], y = q[2], z = q[3];
+        float xx = 2f * x * x, yy = 2f * y * y, zz = 2f * z * z;
+        float xy = 2f * x * y, zw = 2f * z * w, xz = 2f * x * z;
+        float yw = 2f * y * w, yz = 2f * y * z, xw = 2f * x * w;
+
+        m[0] = 1f - yy - zz;
+        m[1] = xy - zw;
+        m[2] = xz + yw;
+        m[3] = 0f;
+
+        m[4] = xy + zw;
+        m[5] = 1f - xx - zz;
+        m[6] = yz - xw;
+        m[7] = 0f;
+
+        m[8] = xz - yw;
+        m[9] = yz + xw;
+        m[10] = 1f - xx - yy;
+        m[11] = 0f;
+
+        m[12] = m[13] = m[14] = 0f;
+        m[15] = 1f;
+    }
+
+    /**
+     * Smoothing factor of a first order low-pass filter for a given sampling interval
+     * @param dt the time since the previous sample (s)
+     * @param timeConstant the time constant of the filter (s)
+     * @return the interpolation factor towards the new sample, between 0 and 1
+     */
+    public static float smoothingFactor(float dt, float timeConstant) {
+        if (dt <= 0f) return 1f;
+        return 1f - (float) Math.exp(-dt / timeConstant);
+    }
+
+}
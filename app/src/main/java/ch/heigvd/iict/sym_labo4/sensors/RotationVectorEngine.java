@@ -0,0 +1,54 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/**
+ * Orientation given by the rotation vector sensor, fused by the platform from the
+ * accelerometer, the magnetometer and the gyroscope. Its quaternion is lightly low-pass
+ * filtered to hide the jitter of the magnetometer.
+ */
+class RotationVectorEngine extends OrientationEngine {
+
+    // time constant of the smoothing (s)
+    private static final float SMOOTHING = 0.03f;
+
+    private final float[] measured = new float[4];
+    private final float[] orientation = new float[4];
+    private long lastTimestamp = 0;
+
+    RotationVectorEngine(SensorManager sensorManager, Listener listener) {
+        super(sensorManager, listener);
+    }
+
+    @Override
+    protected boolean register(Handler handler) {
+        return register(sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR), handler);
+    }
+
+    @Override
+    protected void reset() {
+        lastTimestamp = 0;
+    }
+
+    @Override
+    protected void onEvent(SensorEvent event) {
+        SensorManager.getQuaternionFromVector(measured, event.values);
+        if (lastTimestamp == 0) {
+            System.arraycopy(measured, 0, orientation, 0, 4);
+        } else {
+            float dt = (event.timestamp - lastTimestamp) * 1e-9f;
+            Quaternions.slerp(orientation, measured, Quaternions.smoothingFactor(dt, SMOOTHING), orientation);
+        }
+        lastTimestamp = event.timestamp;
+        publish(orientation, event.timestamp);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+    }
+
+}
@@ -5,6 +5,7 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -14,6 +15,7 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import java.util.Calendar;
+import java.util.Locale;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManager;
@@ -24,8 +26,12 @@ public class BleOperationsViewModel extends AndroidViewModel {
 
     private static final String TAG = BleOperationsViewModel.class.getSimpleName();
 
+    // a few writes of a characteristic are queued so the link never waits for the next one,
+    // the values written beyond replace each other
+    private static final int MAX_QUEUED_WRITES = 2;
+    private static final long STATS_PERIOD_MS = 1000;
+
     private MySymBleManager ble = null;
-    private BluetoothGatt mConnection = null;
 
     //live data - observer
     private final MutableLiveData<Boolean> mIsConnected = new MutableLiveData<>();
@@ -58,7 +64,7 @@ public class BleOperationsViewModel extends AndroidViewModel {
     protected void onCleared() {
         super.onCleared();
         Log.d(TAG, "onCleared");
-        this.ble.disconnect();
+        this.ble.disconnect().enqueue();
     }
 
     public void connect(BluetoothDevice device) {
@@ -73,10 +79,7 @@ public class BleOperationsViewModel extends AndroidViewModel {
 
     public void disconnect() {
         Log.d(TAG, "User request disconnection");
-        this.ble.disconnect();
-        if(mConnection != null) {
-            mConnection.disconnect();
-        }
+        this.ble.disconnect().enqueue();
     }
 
     public boolean writeDate(Calendar calendar){
@@ -90,8 +93,8 @@ public class BleOperationsViewModel extends AndroidViewModel {
         value[4] = (byte)calendar.get(Calendar.HOUR_OF_DAY);
         value[5] = (byte)calendar.get(Calendar.MINUTE);
         value[6] = (byte)calendar.get(Calendar.SECOND);
-        currentTimeChar.setValue(value);
-        return mConnection.writeCharacteristic(currentTimeChar);
+        ble.dateWrites.write(value);
+        return true;
     }
 
     public boolean writeInteger(Integer i){
@@ -100,8 +103,8 @@ public class BleOperationsViewModel extends AndroidViewModel {
         }
         byte[] value = new byte[1];
         value[0] = i.byteValue();
-        integerChar.setValue(value);
-        return mConnection.writeCharacteristic(integerChar);
+        ble.integerWrites.write(value);
+        return true;
     }
 
     public boolean readTemperature() {
@@ -109,6 +112,52 @@ public class BleOperationsViewModel extends AndroidViewModel {
         return ble.readTemperature();
     }
 
+    /**
+     * @return the latency of the operations, the throughput and the writes coalesced, since the
+     *         connection
+     */
+    public String getStats() {
+        return ble.stats();
+    }
+
+    /*
+     * Counters of an operation, updated on the main thread where the requests complete
+     */
+    private static final class OperationStats {
+        private final String name;
+        private long count = 0, failed = 0, coalesced = 0, bytes = 0;
+        private long latencySumNs = 0, latencyMaxNs = 0;
+        private long firstNs = 0, lastNs = 0;
+
+        OperationStats(String name) {
+            this.name = name;
+        }
+
+        void record(long startNs, int length, boolean success) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            if(count == 0) firstNs = startNs;
+            lastNs = now;
+            ++count;
+            if(!success) ++failed;
+            else bytes += length;
+            latencySumNs += now - startNs;
+            latencyMaxNs = Math.max(latencyMaxNs, now - startNs);
+        }
+
+        void reset() {
+            count = failed = coalesced = bytes = latencySumNs = latencyMaxNs = firstNs = lastNs = 0;
+        }
+
+        @Override
+        public String toString() {
+            if(count == 0) return name + ": none";
+            float seconds = (lastNs - firstNs) / 1e9f;
+            return String.format(Locale.ROOT, "%s: %d (%d failed, %d coalesced), latency avg %.1f max %.1f ms, %.0f B/s",
+                    name, count, failed, coalesced, latencySumNs / 1e6f / count, latencyMaxNs / 1e6f,
+                    seconds > 0f ? bytes / seconds : 0f);
+        }
+    }
+
     private BleManagerCallbacks bleManagerCallbacks = new BleManagerCallbacks() {
         @Override
         public void onDeviceConnecting(@NonNull BluetoothDevice device) {
@@ -195,7 +244,6 @@ public class BleOperationsViewModel extends AndroidViewModel {
 
             @Override
             public boolean isRequiredServiceSupported(@NonNull final BluetoothGatt gatt) {
-                mConnection = gatt; //trick to force disconnection
                 Log.d(TAG, "isRequiredServiceSupported - discovered services:");
 
                 UUID timeServiceUUID = UUID.fromString("00001805-0000-1000-8000-00805f9b34fb");
@@ -204,7 +252,7 @@ public class BleOperationsViewModel extends AndroidViewModel {
                 UUID integerCharUUID = UUID.fromString("3c0a1001-281d-4b48-b2a7-f15579a1c38f");
                 UUID temperatureCharUUID = UUID.fromString("3c0a1002-281d-4b48-b2a7-f15579a1c38f");
                 UUID buttonClickCharUUID = UUID.fromString("3c0a1003-281d-4b48-b2a7-f15579a1c38f");
-                for(BluetoothGattService service : mConnection.getServices()){
+                for(BluetoothGattService service : gatt.getServices()){
                     if(timeServiceUUID.equals(service.getUuid())){
                         symService = service;
                         for(BluetoothGattCharacteristic characteristique : symService.getCharacteristics()){
@@ -229,8 +277,15 @@ public class BleOperationsViewModel extends AndroidViewModel {
                         }
                     }
                 }
-                return buttonClickChar != null && temperatureChar != null
-                        && integerChar != null && currentTimeChar != null;
+                if(buttonClickChar == null || temperatureChar == null
+                        || integerChar == null || currentTimeChar == null) return false;
+
+                //the writes are acknowledged by the stack only when the device does not answer them
+                useWriteWithoutResponse(currentTimeChar);
+                useWriteWithoutResponse(integerChar);
+                dateWrites.setCharacteristic(currentTimeChar);
+                integerWrites.setCharacteristic(integerChar);
+                return true;
             }
 
             @Override
@@ -244,6 +299,13 @@ public class BleOperationsViewModel extends AndroidViewModel {
 
             @Override
             protected void onDeviceDisconnected() {
+                //the requests queued are dropped with the connection
+                dateWrites.setCharacteristic(null);
+                integerWrites.setCharacteristic(null);
+                temperatureReadQueued = false;
+                Log.d(TAG, stats());
+                resetStats();
+
                 //we reset services and characteristics
                 timeService = null;
                 currentTimeChar = null;
@@ -255,12 +317,124 @@ public class BleOperationsViewModel extends AndroidViewModel {
             }
         };
 
+        private final OperationStats temperatureReads = new OperationStats("temperature reads");
+        private final OperationStats dateReads = new OperationStats("date reads");
+        private final WriteChannel dateWrites = new WriteChannel(new OperationStats("date writes"));
+        private final WriteChannel integerWrites = new WriteChannel(new OperationStats("integer writes"));
+        private long lastStatsLog = 0;
+
+        //a read already queued returns the value of the next one
+        private boolean temperatureReadQueued = false;
+
         public boolean readTemperature() {
-            readCharacteristic(temperatureChar).with((device, data) ->
-                    mTemperature.postValue((float)data.getIntValue(Data.FORMAT_UINT16, 0) / 10)).enqueue();
+            if(temperatureReadQueued) {
+                ++temperatureReads.coalesced;
+                return true;
+            }
+            temperatureReadQueued = true;
+            long start = SystemClock.elapsedRealtimeNanos();
+            readCharacteristic(temperatureChar)
+                    .with((device, data) -> mTemperature.postValue((float)data.getIntValue(Data.FORMAT_UINT16, 0) / 10))
+                    .done(device -> onTemperatureRead(start, true))
+                    .fail((device, status) -> onTemperatureRead(start, false))
+                    .invalid(() -> onTemperatureRead(start, false))
+                    .enqueue();
             return true;
         }
 
+        private void onTemperatureRead(long start, boolean success) {
+            temperatureReadQueued = false;
+            temperatureReads.record(start, 2, success);
+            logStats();
+        }
+
+        private void useWriteWithoutResponse(BluetoothGattCharacteristic characteristic) {
+            if((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                //taken by the write requests when they are created
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            } else {
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            }
+        }
+
+        String stats() {
+            return dateWrites.stats + ", " + integerWrites.stats + ", " + temperatureReads + ", " + dateReads;
+        }
+
+        private void resetStats() {
+            dateWrites.stats.reset();
+            integerWrites.stats.reset();
+            temperatureReads.reset();
+            dateReads.reset();
+        }
+
+        private void logStats() {
+            long now = SystemClock.elapsedRealtime();
+            if(now - lastStatsLog < STATS_PERIOD_MS) return;
+            lastStatsLog = now;
+            Log.d(TAG, stats());
+        }
+
+        /*
+         * Writes of a characteristic through the queue of the manager: at most MAX_QUEUED_WRITES
+         * are queued, the value of a write beyond replaces the one waiting, only the last value is
+         * written once a queued write completes
+         */
+        private final class WriteChannel {
+            private final OperationStats stats;
+            private BluetoothGattCharacteristic characteristic = null;
+            private int queued = 0;
+            private byte[] waiting = null;
+
+            WriteChannel(OperationStats stats) {
+                this.stats = stats;
+            }
+
+            //a new connection starts with an empty queue
+            void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+                this.characteristic = characteristic;
+                this.queued = 0;
+                this.waiting = null;
+            }
+
+            void write(byte[] value) {
+                if(characteristic == null) return;
+                if(queued >= MAX_QUEUED_WRITES) {
+                    if(waiting != null) ++stats.coalesced;
+                    waiting = value;
+                    return;
+                }
+                enqueue(value);
+            }
+
+            private void enqueue(byte[] value) {
+                ++queued;
+                BluetoothGattCharacteristic target = characteristic;
+                long start = SystemClock.elapsedRealtimeNanos();
+                writeCharacteristic(target, value)
+                        .done(device -> onWritten(target, start, value.length, true))
+                        .fail((device, status) -> {
+                            Log.w(TAG, "Write failed: " + status);
+                            onWritten(target, start, value.length, false);
+                        })
+                        .invalid(() -> onWritten(target, start, value.length, false))
+                        .enqueue();
+            }
+
+            private void onWritten(BluetoothGattCharacteristic target, long start, int length, boolean success) {
+                //completion of a request of a previous connection
+                if(target != characteristic) return;
+                --queued;
+                stats.record(start, length, success);
+                logStats();
+                if(waiting != null) {
+                    byte[] value = waiting;
+                    waiting = null;
+                    enqueue(value);
+                }
+            }
+        }
+
         public void readNbButtonClicked(){
             mNbAppuis.setValue(buttonClickChar.getIntValue(Data.FORMAT_UINT8, 0));
         }
@@ -269,6 +443,7 @@ public class BleOperationsViewModel extends AndroidViewModel {
             if(currentTimeChar == null){
                 return;
             }
+            long start = SystemClock.elapsedRealtimeNanos();
             readCharacteristic(currentTimeChar).with((device, data) -> {
                 data.getIntValue(Data.FORMAT_UINT16, 0);
                 data.getIntValue(Data.FORMAT_UINT8, 2);
@@ -276,7 +451,9 @@ public class BleOperationsViewModel extends AndroidViewModel {
                 data.getIntValue(Data.FORMAT_UINT8, 4);
                 data.getIntValue(Data.FORMAT_UINT8, 5);
                 data.getIntValue(Data.FORMAT_UINT8, 6);
-            }).enqueue();
+            }).done(device -> dateReads.record(start, 7, true))
+                    .fail((device, status) -> dateReads.record(start, 7, false))
+                    .enqueue();
             Calendar calendar = Calendar.getInstance();
             calendar.set(Calendar.YEAR, currentTimeChar.getIntValue(Data.FORMAT_UINT16, 0));
             calendar.set(Calendar.MONTH, currentTimeChar.getIntValue(Data.FORMAT_UINT8, 2) - 1);
@@ -0,0 +1,213 @@
+package ch.heigvd.iict.sym_labo4.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static android.os.Looper.getMainLooper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Replays a flood of advertisements through the engine, the controller being replaced by a fake
+ * scanner calling the callbacks on the main thread like the framework
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BleScanEngineTest {
+
+    private static final int DEVICES = 500;
+    // more than the ring of the engine holds, the late results are posted one by one
+    private static final int SINGLE_RESULTS = 20000;
+    private static final int BATCHES = 50;
+    private static final int BATCH_SIZE = 100;
+
+    private static final long TIMEOUT_MS = 10000;
+
+    /*
+     * Records the calls of the engine and keeps the callback of the scan. The batch pending in the
+     * controller is delivered on the main thread when flushed
+     */
+    private static final class FakeScanner implements BleScanEngine.Scanner {
+        final List<String> calls = new ArrayList<>();
+        final List<ScanResult> pending = new ArrayList<>();
+        ScanCallback callback;
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isOffloadedScanBatchingSupported() {
+            return true;
+        }
+
+        @Override
+        public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+            calls.add("start " + settings.getScanMode());
+            this.callback = callback;
+        }
+
+        @Override
+        public void flushPendingScanResults(ScanCallback callback) {
+            calls.add("flush");
+            if (pending.isEmpty()) return;
+            List<ScanResult> batch = new ArrayList<>(pending);
+            pending.clear();
+            new Handler(Looper.getMainLooper()).post(() -> callback.onBatchScanResults(batch));
+        }
+
+        @Override
+        public void stopScan(ScanCallback callback) {
+            calls.add("stop");
+        }
+    }
+
+    private static final class RecordingListener implements BleScanEngine.Listener {
+        BleScanEngine.Snapshot last;
+
+        @Override
+        public void onScanResults(BleScanEngine.Snapshot snapshot) {
+            last = snapshot;
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            fail("scan failed: " + errorCode);
+        }
+    }
+
+    @Test
+    public void floodOfAdvertisementsIsRankedWithoutLoss() throws InterruptedException {
+        FakeScanner scanner = new FakeScanner();
+        RecordingListener listener = new RecordingListener();
+        BleScanEngine engine = new BleScanEngine(scanner, listener, 0, BleScanEngine.DEFAULT_PUBLISH_RATE);
+        engine.start(Collections.<ScanFilter>emptyList(), ScanSettings.SCAN_MODE_LOW_LATENCY);
+        assertNotNull(scanner.callback);
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < SINGLE_RESULTS; ++i) {
+            scanner.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, advertisement(adapter, i % DEVICES, now));
+        }
+        for (int b = 0; b < BATCHES; ++b) {
+            List<ScanResult> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; ++i) {
+                batch.add(advertisement(adapter, (b * BATCH_SIZE + i) % DEVICES, now));
+            }
+            scanner.callback.onBatchScanResults(batch);
+        }
+
+        // the engine thread runs on its own, the results are aggregated in real time
+        long total = SINGLE_RESULTS + BATCHES * BATCH_SIZE;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (engine.getResultCount() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, engine.getResultCount());
+        assertEquals(SINGLE_RESULTS + BATCHES, engine.getCallbackCount());
+        assertEquals(BATCHES, engine.getBatchCount());
+        assertEquals(DEVICES, engine.getDiscoveredCount());
+
+        // the publications are paced on the clock of the looper
+        awaitSnapshot(listener);
+        BleScanEngine.Snapshot snapshot = listener.last;
+        assertEquals(DEVICES, snapshot.getResults().size());
+        Set<String> addresses = new HashSet<>();
+        for (int i = 0; i < DEVICES; ++i) {
+            addresses.add(snapshot.getResults().get(i).getDevice().getAddress());
+            if (i > 0) assertTrue(snapshot.getFilteredRssi(i - 1) >= snapshot.getFilteredRssi(i));
+        }
+        assertEquals(DEVICES, addresses.size());
+        // each device always advertises the same RSSI, its estimate converges to it
+        assertEquals(rssi(0), snapshot.getFilteredRssi(0), 0.5f);
+        assertEquals(rssi(DEVICES - 1), snapshot.getFilteredRssi(DEVICES - 1), 0.5f);
+
+        engine.stop();
+    }
+
+    @Test
+    public void pendingResultsAreFlushedBeforeStopping() throws InterruptedException {
+        FakeScanner scanner = new FakeScanner();
+        RecordingListener listener = new RecordingListener();
+        BleScanEngine engine = new BleScanEngine(scanner, listener,
+                BleScanEngine.DEFAULT_REPORT_DELAY_MS, BleScanEngine.DEFAULT_PUBLISH_RATE);
+        engine.start(Collections.<ScanFilter>emptyList(), ScanSettings.SCAN_MODE_LOW_POWER);
+        engine.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+
+        // batched by the controller, only delivered by the flush of the stop
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            scanner.pending.add(advertisement(adapter, i, now));
+        }
+        engine.stop();
+        assertEquals(Arrays.asList(
+                "start " + ScanSettings.SCAN_MODE_LOW_POWER,
+                "flush", "stop", "start " + ScanSettings.SCAN_MODE_LOW_LATENCY,
+                "flush", "stop"), scanner.calls);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((listener.last == null || listener.last.getResults().size() < BATCH_SIZE)
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(getMainLooper()).idle();
+            Thread.sleep(10);
+        }
+        assertNotNull("no snapshot published", listener.last);
+        assertEquals(BATCH_SIZE, listener.last.getResults().size());
+        assertEquals(1, engine.getBatchCount());
+        assertEquals(BATCH_SIZE, engine.getResultCount());
+        assertEquals(BATCH_SIZE, engine.getDiscoveredCount());
+    }
+
+    /*
+     * Advances the clock until the engine thread posts a snapshot of every device
+     */
+    private static void awaitSnapshot(RecordingListener listener) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((listener.last == null || listener.last.getResults().size() < DEVICES)
+                && System.currentTimeMillis() < deadline) {
+            shadowOf(getMainLooper()).idleFor(1000 / BleScanEngine.DEFAULT_PUBLISH_RATE, TimeUnit.MILLISECONDS);
+            Thread.sleep(10);
+        }
+        assertNotNull("no snapshot published", listener.last);
+    }
+
+    private static ScanResult advertisement(BluetoothAdapter adapter, int device, long timestampNanos) {
+        String address = String.format(Locale.ROOT, "00:11:22:33:%02X:%02X", device >> 8, device & 0xFF);
+        return new ScanResult(adapter.getRemoteDevice(address), null, rssi(device), timestampNanos);
+    }
+
+    /*
+     * From -30 to -99 dBm, several devices share each level
+     */
+    private static int rssi(int device) {
+        return -30 - device * 70 / DEVICES;
+    }
+
+}
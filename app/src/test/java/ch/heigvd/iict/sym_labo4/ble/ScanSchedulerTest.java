@@ -0,0 +1,171 @@
+package ch.heigvd.iict.sym_labo4.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static android.os.Looper.getMainLooper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Duty cycle of the scan over the clock of the main looper, the controller being replaced by a
+ * fake scanner recording the scans started
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ScanSchedulerTest {
+
+    private static final long STEP_MS = 500;
+    private static final long TIMEOUT_MS = 5000;
+
+    /*
+     * Records the scan modes started and their times, keeps the callback of the scan
+     */
+    private static final class FakeScanner implements BleScanEngine.Scanner {
+        final List<Integer> modes = new ArrayList<>();
+        final List<Long> starts = new ArrayList<>();
+        ScanCallback callback;
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean isOffloadedScanBatchingSupported() {
+            return true;
+        }
+
+        @Override
+        public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+            modes.add(settings.getScanMode());
+            starts.add(SystemClock.uptimeMillis());
+            this.callback = callback;
+        }
+
+        @Override
+        public void flushPendingScanResults(ScanCallback callback) {}
+
+        @Override
+        public void stopScan(ScanCallback callback) {}
+    }
+
+    private final FakeScanner scanner = new FakeScanner();
+    private BleScanEngine engine;
+    private ScanScheduler scheduler;
+    private long startTime;
+    private long stopTime = -1;
+
+    @Before
+    public void createScheduler() {
+        engine = new BleScanEngine(scanner, new BleScanEngine.Listener() {
+            @Override
+            public void onScanResults(BleScanEngine.Snapshot snapshot) {}
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                fail("scan failed: " + errorCode);
+            }
+        }, BleScanEngine.DEFAULT_REPORT_DELAY_MS, BleScanEngine.DEFAULT_PUBLISH_RATE);
+        scheduler = new ScanScheduler(engine, () -> stopTime = SystemClock.uptimeMillis());
+        startTime = SystemClock.uptimeMillis();
+    }
+
+    @Test
+    public void scansStartedAreThrottled() {
+        for (int i = 0; i < 2 * ScanScheduler.MAX_STARTS; ++i) {
+            int started = scanner.starts.size();
+            scheduler.start(Collections.<ScanFilter>emptyList());
+            for (int s = 0; scanner.starts.size() == started && s < 2 * ScanScheduler.STARTS_PERIOD_MS / STEP_MS; ++s) {
+                shadowOf(getMainLooper()).idleFor(STEP_MS, TimeUnit.MILLISECONDS);
+            }
+            assertEquals(started + 1, scanner.starts.size());
+            scheduler.stop();
+        }
+        // the first ones at once, then each waits for the oldest to leave the period
+        assertEquals(startTime, (long) scanner.starts.get(ScanScheduler.MAX_STARTS - 1));
+        for (int i = ScanScheduler.MAX_STARTS; i < scanner.starts.size(); ++i) {
+            long period = scanner.starts.get(i) - scanner.starts.get(i - ScanScheduler.MAX_STARTS);
+            assertTrue("starts " + scanner.starts, period >= ScanScheduler.STARTS_PERIOD_MS);
+        }
+    }
+
+    @Test
+    public void scanWithoutDevicesStopsAfterIdleTimeout() {
+        scheduler.start(Collections.<ScanFilter>emptyList());
+        while (stopTime < 0 && SystemClock.uptimeMillis() - startTime < 3 * ScanScheduler.IDLE_TIMEOUT_MS) {
+            shadowOf(getMainLooper()).idleFor(STEP_MS, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(Arrays.asList(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.SCAN_MODE_BALANCED,
+                ScanSettings.SCAN_MODE_LOW_POWER), scanner.modes);
+        // low power from the end of the low latency and balanced windows, 6 then 10 s
+        assertEquals(startTime + 16000 + ScanScheduler.IDLE_TIMEOUT_MS, stopTime);
+        assertFalse(scheduler.isRunning());
+    }
+
+    @Test
+    public void deviceBackAfterExpiringIsNotNew() throws InterruptedException {
+        scheduler.start(Collections.<ScanFilter>emptyList());
+        // seen at 5 s, expired, seen again at 40 s in low power mode
+        long back = 40000;
+        assertTrue(back - 5000 > BleScanEngine.STALE_AFTER_MS);
+        run("AA:00:00:00:00:04", 5000, back);
+        assertEquals(Arrays.asList(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanSettings.SCAN_MODE_BALANCED,
+                ScanSettings.SCAN_MODE_LOW_POWER), scanner.modes);
+        // low power from the end of the second low latency window and the balanced one, 12 + 10 s
+        assertEquals(startTime + 22000 + ScanScheduler.IDLE_TIMEOUT_MS, stopTime);
+    }
+
+    /*
+     * Advances the clock until the scheduler stops, a batch of three devices always around being
+     * delivered at each step, the device given only at the two times given
+     */
+    private void run(String device, long firstSeen, long seenAgain) throws InterruptedException {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        String[] around = { "AA:00:00:00:00:01", "AA:00:00:00:00:02", "AA:00:00:00:00:03" };
+        long delivered = 0;
+        while (stopTime < 0 && SystemClock.uptimeMillis() - startTime < 3 * ScanScheduler.IDLE_TIMEOUT_MS) {
+            long t = SystemClock.uptimeMillis() - startTime;
+            List<ScanResult> batch = new ArrayList<>();
+            for (String address : around) {
+                batch.add(new ScanResult(adapter.getRemoteDevice(address), null, -60, SystemClock.elapsedRealtimeNanos()));
+            }
+            if (t == firstSeen || t == seenAgain) {
+                batch.add(new ScanResult(adapter.getRemoteDevice(device), null, -70, SystemClock.elapsedRealtimeNanos()));
+            }
+            scanner.callback.onBatchScanResults(batch);
+            delivered += batch.size();
+
+            // the engine thread runs on its own, the batch is counted before the window ends
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (engine.getResultCount() < delivered && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(delivered, engine.getResultCount());
+            shadowOf(getMainLooper()).idleFor(STEP_MS, TimeUnit.MILLISECONDS);
+        }
+        assertTrue("scan never stopped", stopTime >= 0);
+    }
+
+}
@@ -0,0 +1,108 @@
+package ch.heigvd.iict.sym_labo4.gl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TripleBufferTest {
+
+    private static final int PUBLICATIONS = 2000000;
+
+    @Test
+    public void readsTheInitialContentBeforeAnyPublication() {
+        float[] initial = { 1, 2, 3 };
+        TripleBuffer buffer = new TripleBuffer(initial);
+        initial[0] = 9;
+        assertArrayEquals(new float[] { 1, 2, 3 }, buffer.read(), 0f);
+        assertEquals(0, buffer.getTimestamp());
+    }
+
+    @Test
+    public void readsTheLastPublication() {
+        TripleBuffer buffer = new TripleBuffer(new float[2]);
+        float[] values = { 1, 1 };
+        buffer.publish(values, 10);
+        values[0] = values[1] = 2;
+        buffer.publish(values, 20);
+        values[0] = values[1] = 3;
+
+        assertArrayEquals(new float[] { 2, 2 }, buffer.read(), 0f);
+        assertEquals(20, buffer.getTimestamp());
+        // nothing new, the same array again
+        assertArrayEquals(new float[] { 2, 2 }, buffer.read(), 0f);
+
+        buffer.publish(values, 30);
+        assertArrayEquals(new float[] { 3, 3 }, buffer.read(), 0f);
+        assertEquals(30, buffer.getTimestamp());
+    }
+
+    @Test
+    public void comparesToTheLastPublication() {
+        TripleBuffer buffer = new TripleBuffer(new float[2]);
+        buffer.publish(new float[] { 1, 2 }, 1);
+        buffer.read();
+        assertTrue(buffer.isPublished(new float[] { 1, 2 }));
+        assertFalse(buffer.isPublished(new float[] { 1, 3 }));
+    }
+
+    /*
+     * The writer publishes matrices whose 16 values and timestamp all carry the same sequence
+     * number. The reader checks each array it gets is one of them, entirely, newer than the
+     * previous one, and that it stays the same until the next read
+     */
+    @Test
+    public void neverReadsAMixedMatrix() throws InterruptedException {
+        TripleBuffer buffer = new TripleBuffer(new float[16]);
+        AtomicReference<String> failure = new AtomicReference<>();
+        // floats hold the integers exactly up to 2^24
+        assertTrue(PUBLICATIONS < 1 << 24);
+
+        Thread writer = new Thread(() -> {
+            float[] matrix = new float[16];
+            for (int sequence = 1; sequence <= PUBLICATIONS; ++sequence) {
+                Arrays.fill(matrix, sequence);
+                buffer.publish(matrix, sequence);
+            }
+        }, "writer");
+
+        Thread reader = new Thread(() -> {
+            float previous = 0;
+            while (previous < PUBLICATIONS && failure.get() == null) {
+                float[] matrix = buffer.read();
+                long timestamp = buffer.getTimestamp();
+                float sequence = matrix[0];
+                String error = check(matrix, sequence, timestamp, previous);
+                // the writer may have published several times meanwhile, the array must not change
+                Thread.yield();
+                if (error == null) error = check(matrix, sequence, timestamp, previous);
+                if (error != null) failure.compareAndSet(null, error);
+                previous = sequence;
+            }
+        }, "reader");
+
+        reader.start();
+        writer.start();
+        writer.join(60000);
+        reader.join(60000);
+        assertFalse("writer still running", writer.isAlive());
+        assertFalse("reader still running", reader.isAlive());
+        assertNull(failure.get());
+    }
+
+    private static String check(float[] matrix, float sequence, long timestamp, float previous) {
+        for (int i = 0; i < matrix.length; ++i) {
+            if (matrix[i] != sequence) return "mixed matrix " + Arrays.toString(matrix);
+        }
+        if (timestamp != (long) sequence) return "timestamp " + timestamp + " of matrix " + sequence;
+        if (sequence < previous) return "matrix " + sequence + " read after " + previous;
+        return null;
+    }
+
+}
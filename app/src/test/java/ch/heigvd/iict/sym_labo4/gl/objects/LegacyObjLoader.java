@@ -0,0 +1,92 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The parsing of the original ObjLoader, line by line through Strings, kept as the reference of
+ * the benchmarks. Only the GL buffers are not created
+ */
+class LegacyObjLoader {
+
+	static final class PriorMesh {
+		float[] vertices;
+		short[] indices;
+	}
+
+	static List<PriorMesh> load(InputStream inModel) throws IOException {
+		List<String> vertices = new ArrayList<>();
+		List<String> faces = new ArrayList<>();
+		List<String> materials = new ArrayList<>();
+		List<PriorMesh> pMeshes = new LinkedList<>();
+		boolean inGroup = false;
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(inModel));
+		String line = in.readLine();
+		while(line != null){
+			if(line.startsWith("v ")){
+				vertices.add(line.substring(2));
+			}
+			else if(line.startsWith("f ")){
+				faces.add(line.substring(2));
+			}
+			else if(line.startsWith("g ")){
+				if(vertices.size() > 0 && faces.size() > 0 && inGroup){
+					pMeshes.add(createMesh(vertices, faces));
+					vertices = new ArrayList<>();
+					faces = new ArrayList<>();
+				}
+				//next line contains the material to use
+				line = in.readLine();
+				materials.add(line.split(" ")[1]);
+				inGroup = true;
+			}
+			line = in.readLine();
+		}
+		pMeshes.add(createMesh(vertices, faces));
+		return pMeshes;
+	}
+
+	private static PriorMesh createMesh(List<String> vertices, List<String> faces){
+		PriorMesh tmpMesh = new PriorMesh();
+
+		float[] vert = new float[3 * vertices.size()];
+		short[] ind  = new short[3 * faces.size()];
+
+		for(int i = 0; i < vertices.size(); ++i){
+			String[] coord = vertices.get(i).split(" ");
+			vert[3*i + 0] = Float.parseFloat(coord[0]);
+			vert[3*i + 1] = Float.parseFloat(coord[1]);
+			vert[3*i + 2] = Float.parseFloat(coord[2]);
+		}
+
+		for(int i = 0; i < faces.size(); ++i){
+			String[] coord = faces.get(i).split(" ");
+			for(int j = 0; j < 3; ++j){
+				String[] parts = coord[j].split("/");
+				ind[3*i + j] = (short)(Short.parseShort(parts[0]) - 1);
+			}
+		}
+
+		//correction of the indices
+		short min = Short.MAX_VALUE;
+		for(int i = 0; i < ind.length; ++i){
+			if(ind[i] < min){
+				min = ind[i];
+			}
+		}
+		for(int i = 0; i < ind.length; ++i){
+			ind[i] -= min;
+		}
+
+		tmpMesh.vertices = vert;
+		tmpMesh.indices = ind;
+		return tmpMesh;
+	}
+
+}
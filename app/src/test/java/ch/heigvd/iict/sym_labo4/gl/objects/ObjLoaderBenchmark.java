@@ -0,0 +1,56 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Loading time of a large model with 1 to N workers, N being the number of cores.
+ * Only run with {@code ./gradlew test -Dbenchmark=true}
+ */
+public class ObjLoaderBenchmark {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 7;
+
+    @Before
+    public void requireBenchmarks() {
+        assumeTrue("benchmarks disabled", Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void scaling() {
+        // 360000 vertices and 718000 triangles in 64 groups
+        byte[] model = TestModels.grid(600, 64);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format(Locale.ROOT, "grid 600x600 (%d kB), %d cores", model.length / 1024, cores));
+
+        double sequential = 0;
+        for (int workers = 1; workers <= cores; workers = workers < cores ? Math.min(2 * workers, cores) : workers + 1) {
+            double ms = median(model, new ObjLoader.Options().setParallelism(workers));
+            if (workers == 1) sequential = ms;
+            System.out.println(String.format(Locale.ROOT, "%2d worker(s): %.1f ms, speedup %.2fx",
+                    workers, ms, sequential / ms));
+        }
+    }
+
+    private static double median(byte[] model, ObjLoader.Options options) {
+        for (int i = 0; i < WARMUP_RUNS; ++i) {
+            new ObjLoader(new ByteArrayInputStream(model), options);
+        }
+        double[] times = new double[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; ++i) {
+            long start = System.nanoTime();
+            new ObjLoader(new ByteArrayInputStream(model), options);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2];
+    }
+
+}
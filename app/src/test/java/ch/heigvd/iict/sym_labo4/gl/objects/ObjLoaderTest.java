@@ -0,0 +1,92 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class ObjLoaderTest {
+
+    private static final int WORKERS = 4;
+
+    @Test
+    public void parallelLoadMatchesSequentialLoad() throws IOException {
+        assertSameGeometry(TestModels.asset("arrow.obj"), new ObjLoader.Options());
+        assertSameGeometry(TestModels.grid(120, 12), new ObjLoader.Options());
+    }
+
+    @Test
+    public void parallelLoadMatchesSequentialLoadWithAllOptions() throws IOException {
+        ObjLoader.Options options = new ObjLoader.Options()
+                .setVertexColors(true)
+                .setOptimize(true)
+                .setLevelsOfDetail(3);
+        assertSameGeometry(TestModels.asset("arrow.obj"), options);
+        assertSameGeometry(TestModels.grid(120, 12), options);
+    }
+
+    @Test
+    public void parallelLoadMatchesSequentialLoadOfSplitGroups() throws IOException {
+        // a single group over the 16 bits index range, split in several meshes
+        assertSameGeometry(TestModels.grid(300, 1), new ObjLoader.Options());
+    }
+
+    private static void assertSameGeometry(byte[] model, ObjLoader.Options options) throws IOException {
+        // the loader bounds the workers by the cores, a single core always loads sequentially
+        assumeTrue("needs several cores", Runtime.getRuntime().availableProcessors() > 1);
+
+        List<String> sequential = geometry(new ObjLoader(new ByteArrayInputStream(model), options.setParallelism(1)));
+        List<String> parallel = geometry(new ObjLoader(new ByteArrayInputStream(model), options.setParallelism(WORKERS)));
+        assertFalse(sequential.isEmpty());
+        assertEquals(sequential, parallel);
+    }
+
+    /*
+     * The positions and indices of every level of each mesh. The groups without material get a
+     * random color and the meshes are sorted by color: the colors are ignored and the meshes
+     * compared in any order
+     */
+    private static List<String> geometry(ObjLoader model) {
+        List<String> meshes = new ArrayList<>();
+        for (Mesh m : model.getMeshes()) {
+            ByteBuffer vertices = m.getVertices().duplicate().order(m.getVertices().order());
+            int stride = m.hasVertexColors() ? Mesh.POSITION_SIZE + Mesh.COLOR_SIZE : Mesh.POSITION_SIZE;
+            float[] positions = new float[3 * (vertices.capacity() / stride)];
+            for (int i = 0; i < positions.length; ++i) {
+                positions[i] = vertices.getFloat(i / 3 * stride + i % 3 * 4);
+            }
+            StringBuilder mesh = new StringBuilder(Arrays.toString(positions));
+            for (int lod = 0; lod < m.getLevelCount(); ++lod) {
+                mesh.append('\n').append(Arrays.toString(indices(m, lod)));
+            }
+            meshes.add(mesh.toString());
+        }
+        Collections.sort(meshes);
+        return meshes;
+    }
+
+    private static int[] indices(Mesh m, int lod) {
+        int[] indices = new int[m.getIndexCount(lod)];
+        if (m.hasUintIndices()) {
+            ((IntBuffer) m.getIndices(lod)).duplicate().get(indices);
+        } else {
+            ShortBuffer buffer = ((ShortBuffer) m.getIndices(lod)).duplicate();
+            for (int i = 0; i < indices.length; ++i) {
+                indices[i] = buffer.get(i) & 0xFFFF;
+            }
+        }
+        return indices;
+    }
+
+}
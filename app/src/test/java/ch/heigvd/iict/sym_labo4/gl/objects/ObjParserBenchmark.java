@@ -0,0 +1,83 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parsing time of the streaming {@link ObjParser} against the original String based loader.
+ * Only run with {@code ./gradlew test -Dbenchmark=true}
+ */
+public class ObjParserBenchmark {
+
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 30;
+
+    /*
+     * One parse of a model, returning the number of vertices read
+     */
+    private interface Run {
+        int parse(byte[] model) throws IOException;
+    }
+
+    @Before
+    public void requireBenchmarks() {
+        assumeTrue("benchmarks disabled", Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void arrow() throws IOException {
+        compare("arrow.obj", TestModels.asset("arrow.obj"));
+    }
+
+    @Test
+    public void largeGrid() throws IOException {
+        // the original loader reads the indices as shorts, the whole model stays below 32768 vertices
+        compare("grid 170x170", TestModels.grid(170, 10));
+    }
+
+    private static void compare(String name, byte[] model) throws IOException {
+        Run legacy = data -> {
+            int vertices = 0;
+            for (LegacyObjLoader.PriorMesh mesh : LegacyObjLoader.load(new ByteArrayInputStream(data))) {
+                vertices += mesh.vertices.length / 3;
+            }
+            return vertices;
+        };
+        Run streaming = data -> {
+            int[] vertices = { 0 };
+            new ObjParser(new ByteArrayInputStream(data)).parse((v, vertexCount, f, indexCount, material) ->
+                    vertices[0] += vertexCount);
+            return vertices[0];
+        };
+        assertEquals(legacy.parse(model), streaming.parse(model));
+
+        double legacyMs = median(legacy, model);
+        double streamingMs = median(streaming, model);
+        System.out.println(String.format(Locale.ROOT, "%s (%d kB): legacy %.2f ms, streaming %.2f ms, %.1fx faster, %.0f MB/s",
+                name, model.length / 1024, legacyMs, streamingMs, legacyMs / streamingMs, model.length / 1e3 / streamingMs));
+    }
+
+    private static double median(Run run, byte[] model) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; ++i) {
+            run.parse(model);
+        }
+        double[] times = new double[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; ++i) {
+            long start = System.nanoTime();
+            run.parse(model);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2];
+    }
+
+}
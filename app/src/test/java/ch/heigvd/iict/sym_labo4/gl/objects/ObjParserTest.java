@@ -0,0 +1,258 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ObjParserTest {
+
+    private static final float EPSILON = 1e-6f;
+
+    /*
+     * A group as received by the handler, the reused arrays of the parser copied
+     */
+    private static final class Group {
+        final float[] vertices;
+        final int[] faces;
+        final String material;
+
+        Group(float[] vertices, int vertexCount, int[] faces, int indexCount, String material) {
+            this.vertices = Arrays.copyOf(vertices, 3 * vertexCount);
+            this.faces = Arrays.copyOf(faces, indexCount);
+            this.material = material;
+        }
+    }
+
+    private static List<Group> parse(String model) throws IOException {
+        return parse(new ByteArrayInputStream(model.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<Group> parse(InputStream in) throws IOException {
+        List<Group> groups = new ArrayList<>();
+        new ObjParser(in).parse((vertices, vertexCount, faces, indexCount, material) ->
+                groups.add(new Group(vertices, vertexCount, faces, indexCount, material)));
+        return groups;
+    }
+
+    @Test
+    public void parsesVerticesAndTriangles() throws IOException {
+        List<Group> groups = parse("v 0 0 0\nv 1.5 -2.25 3\nv -0.5 0.125 +4\nf 1 2 3\n");
+        assertEquals(1, groups.size());
+        assertArrayEquals(new float[] { 0, 0, 0, 1.5f, -2.25f, 3, -0.5f, 0.125f, 4 }, groups.get(0).vertices, EPSILON);
+        assertArrayEquals(new int[] { 0, 1, 2 }, groups.get(0).faces);
+        assertNull(groups.get(0).material);
+    }
+
+    @Test
+    public void resolvesNegativeIndicesFromTheLastVertex() throws IOException {
+        List<Group> groups = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\nf -4 -3 -2\nf -3 -1 -2\n");
+        assertArrayEquals(new int[] { 0, 1, 2, 1, 3, 2 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void resolvesNegativeIndicesAcrossGroups() throws IOException {
+        List<Group> groups = parse(
+                "g a\nusemtl red\nv 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n"
+                        + "g b\nusemtl blue\nv 0 0 1\nv 1 0 1\nv 0 1 1\nf -3 -2 -1\nf 4 5 6\n");
+        assertEquals(2, groups.size());
+        // the indices are global, the relative ones resolved against all the vertices read
+        assertArrayEquals(new int[] { 3, 4, 5, 3, 4, 5 }, groups.get(1).faces);
+    }
+
+    @Test
+    public void triangulatesPolygonsAsFans() throws IOException {
+        List<Group> groups = parse("v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\nv -1 1 0\nf 1 2 3 4\nf 1 2 3 4 5\n");
+        assertArrayEquals(new int[] { 0, 1, 2, 0, 2, 3, 0, 1, 2, 0, 2, 3, 0, 3, 4 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void triangulatesLargePolygons() throws IOException {
+        int n = 40;
+        StringBuilder model = new StringBuilder();
+        StringBuilder face = new StringBuilder("f");
+        for (int i = 0; i < n; ++i) {
+            model.append("v ").append(Math.cos(i)).append(' ').append(Math.sin(i)).append(" 0\n");
+            face.append(' ').append(i + 1);
+        }
+        model.append(face).append('\n');
+
+        int[] faces = parse(model.toString()).get(0).faces;
+        assertEquals(3 * (n - 2), faces.length);
+        for (int i = 0; i < n - 2; ++i) {
+            assertArrayEquals(new int[] { 0, i + 1, i + 2 }, Arrays.copyOfRange(faces, 3 * i, 3 * i + 3));
+        }
+    }
+
+    @Test
+    public void ignoresTextureAndNormalIndices() throws IOException {
+        List<Group> groups = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1/1/1 2/2/2 3/3/3\nf 1//4 2//5 -1//6\nf 3/1 2/2 1/3\n");
+        assertArrayEquals(new int[] { 0, 1, 2, 0, 1, 2, 2, 1, 0 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void parsesExponents() throws IOException {
+        List<Group> groups = parse("v 1e3 -2.5E-2 1.25e+1\nv 6.02e23 -1E-30 0e5\nv 3. .5 -.75\nf 1 2 3\n");
+        float[] expected = { 1000f, -0.025f, 12.5f, 6.02e23f, -1e-30f, 0f, 3f, 0.5f, -0.75f };
+        float[] vertices = groups.get(0).vertices;
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("coordinate " + i, expected[i], vertices[i], Math.abs(expected[i]) * EPSILON);
+        }
+    }
+
+    @Test
+    public void parsesFloatsLikeTheJdk() throws IOException {
+        String[] values = { "0.000001", "123456.789", "-98765.4321", "3.14159265358979323846", "1.0000001", "7.5e-7" };
+        StringBuilder model = new StringBuilder();
+        for (int i = 0; i < values.length; i += 3) {
+            model.append("v ").append(values[i]).append(' ').append(values[i + 1]).append(' ').append(values[i + 2]).append('\n');
+        }
+        model.append("f 1 2 1\n");
+
+        float[] vertices = parse(model.toString()).get(0).vertices;
+        for (int i = 0; i < values.length; ++i) {
+            float expected = Float.parseFloat(values[i]);
+            assertEquals(values[i], expected, vertices[i], Math.ulp(expected));
+        }
+    }
+
+    @Test
+    public void splitsGroupsAndReadsTheirMaterial() throws IOException {
+        List<Group> groups = parse(
+                "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n"
+                        + "g first\nusemtl red\nv 0 0 1\nv 1 0 1\nv 0 1 1\nf 4 5 6\n"
+                        + "g\nusemtl blue\nv 0 0 2\nv 1 0 2\nv 0 1 2\nf 7 8 9\n");
+        assertEquals(3, groups.size());
+        assertNull(groups.get(0).material);
+        assertEquals("red", groups.get(1).material);
+        assertEquals("blue", groups.get(2).material);
+        assertArrayEquals(new float[] { 0, 0, 2, 1, 0, 2, 0, 1, 2 }, groups.get(2).vertices, EPSILON);
+        assertArrayEquals(new int[] { 6, 7, 8 }, groups.get(2).faces);
+    }
+
+    @Test
+    public void skipsEmptyGroups() throws IOException {
+        List<Group> groups = parse("g empty\nusemtl red\ng full\nusemtl blue\nv 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\ng trailing\nusemtl green\n");
+        assertEquals(1, groups.size());
+        assertEquals("blue", groups.get(0).material);
+    }
+
+    @Test
+    public void ignoresObjectStatements() throws IOException {
+        // objects do not delimit the meshes, only the groups do
+        List<Group> groups = parse("o first\nv 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\no second\nv 0 0 1\nf 1 2 4\n");
+        assertEquals(1, groups.size());
+        assertEquals(4, groups.get(0).vertices.length / 3);
+        assertArrayEquals(new int[] { 0, 1, 2, 0, 1, 3 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void skipsUnsupportedAndMalformedLines() throws IOException {
+        List<Group> groups = parse(
+                "# comment v 9 9 9\n"
+                        + "mtllib model.mtl\n"
+                        + "\n"
+                        + "vt 0.5 0.5\n"
+                        + "vn 0 0 1\n"
+                        + "vp 1 2 3\n"
+                        + "s off\n"
+                        + "v 0 0 0\n"
+                        + "   \n"
+                        + "v 1 0 0\n"
+                        + "fo 1 2 3\n"
+                        + "l 1 2\n"
+                        + "v 0 1 0\n"
+                        + "f 1 2 3\n");
+        assertEquals(1, groups.size());
+        assertArrayEquals(new float[] { 0, 0, 0, 1, 0, 0, 0, 1, 0 }, groups.get(0).vertices, EPSILON);
+        assertArrayEquals(new int[] { 0, 1, 2 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void readsMissingCoordinatesAsZero() throws IOException {
+        List<Group> groups = parse("v 1\nv 1 2\nv 3\t4 \t 5\nf 1 2 3\n");
+        assertArrayEquals(new float[] { 1, 0, 0, 1, 2, 0, 3, 4, 5 }, groups.get(0).vertices, EPSILON);
+    }
+
+    @Test
+    public void dropsDegenerateFaces() throws IOException {
+        List<Group> groups = parse("v 0 0 0\nv 1 0 0\nv 0 1 0\nf\nf 1\nf 1 2\nf 1 2 3\n");
+        assertArrayEquals(new int[] { 0, 1, 2 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void acceptsWindowsLineEndingsAndNoFinalNewline() throws IOException {
+        List<Group> groups = parse("g a\r\nusemtl red\r\nv 0 0 0\r\nv 1 0 0\r\nv 0 1 0\r\nf 1 2 3\r\nf 3 2 1");
+        assertEquals(1, groups.size());
+        assertEquals("red", groups.get(0).material);
+        assertArrayEquals(new float[] { 0, 0, 0, 1, 0, 0, 0, 1, 0 }, groups.get(0).vertices, EPSILON);
+        assertArrayEquals(new int[] { 0, 1, 2, 2, 1, 0 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void readsAcrossBufferBoundaries() throws IOException {
+        // a stream returning one byte at a time splits every token
+        byte[] model = "g a\nusemtl red\nv 1.5e1 -2 3\nv 4 5 6\nv 7 8 9\nf 1 2 -1\n".getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(model) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        List<Group> groups = parse(in);
+        assertEquals("red", groups.get(0).material);
+        assertArrayEquals(new float[] { 15, -2, 3, 4, 5, 6, 7, 8, 9 }, groups.get(0).vertices, EPSILON);
+        assertArrayEquals(new int[] { 0, 1, 2 }, groups.get(0).faces);
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() throws IOException {
+        int n = 5000;
+        StringBuilder model = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            model.append("v ").append(i).append(" 0 0\n");
+        }
+        for (int i = 1; i + 2 <= n; i += 3) {
+            model.append("f ").append(i).append(' ').append(i + 1).append(' ').append(i + 2).append('\n');
+        }
+        Group group = parse(model.toString()).get(0);
+        assertEquals(3 * n, group.vertices.length);
+        assertEquals(n - 1, group.vertices[3 * (n - 1)], EPSILON);
+        assertEquals(3 * (n / 3), group.faces.length);
+    }
+
+    @Test
+    public void partsParseLikeTheWholeModel() throws IOException {
+        String text = "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n"
+                + "g a\nusemtl red\nv 0 0 1\nv 1 0 1\nv 0 1 1\nf -3 -2 -1\n"
+                + "g b\nusemtl blue\nv 0 0 2\nv 1 0 2\nv 0 1 2\nv 1 1 2\nf 7 8 9 10\n";
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        List<Group> whole = parse(text);
+
+        int[] parts = ObjParser.splitGroups(data, data.length);
+        assertEquals(6, parts.length);
+        List<Group> split = new ArrayList<>();
+        for (int i = 0; i < parts.length; i += 2) {
+            int end = i + 2 < parts.length ? parts[i + 2] : data.length;
+            new ObjParser(data, parts[i], end - parts[i], parts[i + 1]).parse((vertices, vertexCount, faces, indexCount, material) ->
+                    split.add(new Group(vertices, vertexCount, faces, indexCount, material)));
+        }
+
+        assertEquals(whole.size(), split.size());
+        for (int i = 0; i < whole.size(); ++i) {
+            assertArrayEquals(whole.get(i).vertices, split.get(i).vertices, 0f);
+            assertArrayEquals(whole.get(i).faces, split.get(i).faces);
+            assertEquals(whole.get(i).material, split.get(i).material);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package ch.heigvd.iict.sym_labo4.gl.objects;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Models of the tests and benchmarks
+ */
+final class TestModels {
+
+    // the tests run in the directory of the module
+    private static final File ASSETS = new File("src/main/assets");
+
+    private TestModels() {
+    }
+
+    /**
+     * @param name the name of the asset
+     * @return the content of an asset of the app
+     */
+    static byte[] asset(String name) throws IOException {
+        return Files.readAllBytes(new File(ASSETS, name).toPath());
+    }
+
+    /**
+     * A wavy square grid of {@code size * size} vertices, two triangles per cell, split in groups
+     * of consecutive rows. Each group declares its own vertices, the faces use absolute indices
+     * @param size the number of vertices per side
+     * @param groups the number of groups, at most {@code size - 1}
+     * @return the content of the model
+     */
+    static byte[] grid(int size, int groups) {
+        StringBuilder model = new StringBuilder("# synthetic grid\n");
+        int rowsPerGroup = (size - 1 + groups - 1) / groups;
+        int declared = 0;
+        for (int group = 0; group < groups; ++group) {
+            int firstRow = group * rowsPerGroup;
+            int lastRow = Math.min(firstRow + rowsPerGroup, size - 1);
+            if (firstRow >= lastRow) break;
+            model.append("g grid_").append(group).append('\n');
+            model.append("usemtl material_").append(group % 4).append('\n');
+            // the first row of the group repeats the last one of the previous group
+            int base = declared;
+            for (int y = firstRow; y <= lastRow; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    float z = (float) (Math.sin(x * 0.1) * Math.cos(y * 0.1));
+                    model.append(String.format(Locale.ROOT, "v %.5f %.5f %.5f\n", x * 0.01f, y * 0.01f, z));
+                    ++declared;
+                }
+            }
+            for (int y = 0; y < lastRow - firstRow; ++y) {
+                for (int x = 0; x < size - 1; ++x) {
+                    int a = base + y * size + x + 1;
+                    int b = a + 1;
+                    int c = a + size;
+                    int d = c + 1;
+                    model.append("f ").append(a).append(' ').append(b).append(' ').append(d).append('\n');
+                    model.append("f ").append(a).append(' ').append(d).append(' ').append(c).append('\n');
+                }
+            }
+        }
+        return model.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+}
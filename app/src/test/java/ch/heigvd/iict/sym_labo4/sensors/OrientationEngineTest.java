@@ -0,0 +1,170 @@
+package ch.heigvd.iict.sym_labo4.sensors;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.os.Looper.getMainLooper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Frames requested by the orientations published, the sensors being replaced by quaternions
+ * handed to the engine thread
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class OrientationEngineTest {
+
+    private static final long FRAME_MS = 17;
+    private static final long TIMEOUT_MS = 5000;
+
+    // the noise of the filters of a device lying still, well within the dead band
+    private static final float JITTER_RAD = OrientationEngine.DEAD_BAND_RAD / 5;
+
+    /*
+     * Publishes the quaternions it is given, on the thread of the engine
+     */
+    private static final class ManualEngine extends OrientationEngine {
+        private volatile Handler handler;
+
+        ManualEngine(SensorManager sensorManager, Listener listener) {
+            super(sensorManager, listener);
+        }
+
+        @Override
+        protected boolean register(Handler handler) {
+            this.handler = handler;
+            return true;
+        }
+
+        @Override
+        protected void reset() {}
+
+        @Override
+        protected void onEvent(SensorEvent event) {}
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+        /*
+         * Publishes an orientation, then lets a display frame pass
+         */
+        void frame(float[] orientation, long timestampNs) throws InterruptedException {
+            float[] copy = orientation.clone();
+            handler.post(() -> publish(copy, timestampNs));
+            nextFrame();
+        }
+
+        void nextFrame() throws InterruptedException {
+            shadowOf(getMainLooper()).idleFor(FRAME_MS, TimeUnit.MILLISECONDS);
+            // queued after the frame callback, now due
+            CountDownLatch done = new CountDownLatch(1);
+            handler.post(done::countDown);
+            assertTrue("engine thread stuck", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private final AtomicInteger frames = new AtomicInteger();
+    private ManualEngine engine;
+
+    @Before
+    public void startEngine() {
+        SensorManager sensorManager = (SensorManager) RuntimeEnvironment.application.getSystemService(Context.SENSOR_SERVICE);
+        engine = new ManualEngine(sensorManager, (matrix, timestampNs, frameTimeNanos) -> frames.incrementAndGet());
+        engine.start();
+    }
+
+    @After
+    public void stopEngine() {
+        engine.stop();
+    }
+
+    @Test
+    public void jitterOfStillDeviceRequestsNoFrame() throws InterruptedException {
+        float[] still = rotation(0.3f, 0.5f, -0.8f, 1.2f);
+        engine.frame(still, 0);
+        awaitFrames(1);
+
+        Random random = new Random(42);
+        float[] noise = new float[4];
+        float[] jittered = new float[4];
+        for (int i = 1; i <= 300; ++i) {
+            float[] n = rotation(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f,
+                    random.nextFloat() * JITTER_RAD);
+            System.arraycopy(n, 0, noise, 0, 4);
+            Quaternions.multiply(still, noise, jittered);
+            engine.frame(jittered, i * FRAME_MS * 1000000L);
+        }
+        settle();
+        assertEquals(1, frames.get());
+    }
+
+    @Test
+    public void rotationBeyondDeadBandRequestsFrame() throws InterruptedException {
+        float[] start = rotation(0f, 0f, 1f, 0f);
+        engine.frame(start, 0);
+        awaitFrames(1);
+        engine.frame(rotation(0f, 0f, 1f, 2 * OrientationEngine.DEAD_BAND_RAD), FRAME_MS * 1000000L);
+        awaitFrames(2);
+    }
+
+    @Test
+    public void slowRotationAddsUpToFrames() throws InterruptedException {
+        // each step within the dead band, 100 steps covering 10 bands
+        float step = OrientationEngine.DEAD_BAND_RAD / 10;
+        engine.frame(rotation(0f, 0f, 1f, 0f), 0);
+        awaitFrames(1);
+        for (int i = 1; i <= 100; ++i) {
+            engine.frame(rotation(0f, 0f, 1f, i * step), i * FRAME_MS * 1000000L);
+        }
+        settle();
+        assertTrue("frames " + frames.get(), frames.get() >= 10 && frames.get() <= 12);
+    }
+
+    /*
+     * The first frame of the engine may take a few vsyncs
+     */
+    private void awaitFrames(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (frames.get() < count && System.currentTimeMillis() < deadline) {
+            engine.nextFrame();
+        }
+        assertEquals(count, frames.get());
+    }
+
+    // a frame requested late would show up in the next ones
+    private void settle() throws InterruptedException {
+        for (int i = 0; i < 5; ++i) {
+            engine.nextFrame();
+        }
+    }
+
+    /*
+     * Rotation of an angle around an axis, not necessarily normalized
+     */
+    private static float[] rotation(float x, float y, float z, float angle) {
+        float n = (float) Math.sqrt(x * x + y * y + z * z);
+        float s = (float) Math.sin(angle / 2) / n;
+        return new float[] { (float) Math.cos(angle / 2), x * s, y * s, z * s };
+    }
+
+}